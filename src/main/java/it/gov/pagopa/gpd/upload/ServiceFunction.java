@@ -1,27 +1,38 @@
 package it.gov.pagopa.gpd.upload;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
-import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import com.microsoft.azure.functions.ExecutionContext;
 import com.microsoft.azure.functions.annotation.FunctionName;
 import com.microsoft.azure.functions.annotation.QueueTrigger;
 import it.gov.pagopa.gpd.upload.client.GPDClient;
 import it.gov.pagopa.gpd.upload.entity.DeleteMessage;
 import it.gov.pagopa.gpd.upload.entity.DebtPositionMessage;
+import it.gov.pagopa.gpd.upload.entity.RawUpsertMessage;
 import it.gov.pagopa.gpd.upload.entity.UpsertMessage;
 import it.gov.pagopa.gpd.upload.model.QueueMessage;
+import it.gov.pagopa.gpd.upload.entity.ResponseEntry;
 import it.gov.pagopa.gpd.upload.entity.Status;
+import it.gov.pagopa.gpd.upload.exception.AppException;
 import it.gov.pagopa.gpd.upload.model.RequestGPD;
 import it.gov.pagopa.gpd.upload.model.ResponseGPD;
 import it.gov.pagopa.gpd.upload.repository.BlobRepository;
 import it.gov.pagopa.gpd.upload.service.CRUDService;
+import it.gov.pagopa.gpd.upload.service.QueueService;
 import it.gov.pagopa.gpd.upload.service.StatusService;
+import it.gov.pagopa.gpd.upload.util.AdmissionController;
 import it.gov.pagopa.gpd.upload.util.IdempotencyUploadTracker;
 import it.gov.pagopa.gpd.upload.util.MapUtils;
+import it.gov.pagopa.gpd.upload.util.MessageBatcher;
+import it.gov.pagopa.gpd.upload.util.ObjectMapperUtils;
+import it.gov.pagopa.gpd.upload.util.QueueMessageCodec;
+import it.gov.pagopa.gpd.upload.util.RawMessageReader;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
 import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -30,52 +41,148 @@ import java.util.logging.Logger;
  * Following function handles request to GPD and update STATUS and REPORT
  */
 public class ServiceFunction {
+    // the positions are passed through from the queue message to the GPD request body without binding
+    private static final boolean RAW_POSITIONS = System.getenv("RAW_POSITIONS_ENABLED") != null && Boolean.parseBoolean(System.getenv("RAW_POSITIONS_ENABLED"));
+    // the messages of the same upload dequeued together (see host.json batchSize) are merged into one GPD call,
+    // one status update and one completion check: the first one waits the linger for the others
+    private static final boolean BATCH_ENABLED = System.getenv("SERVICE_BATCH_ENABLED") != null && Boolean.parseBoolean(System.getenv("SERVICE_BATCH_ENABLED"));
+    private static final long BATCH_LINGER_MS = System.getenv("SERVICE_BATCH_LINGER_MS") != null ? Long.parseLong(System.getenv("SERVICE_BATCH_LINGER_MS")) : 200;
+    // positions of a merged request, within the GPD bulk limit
+    private static final int BATCH_MAX_POSITIONS = System.getenv("SERVICE_BATCH_MAX_POSITIONS") != null ? Integer.parseInt(System.getenv("SERVICE_BATCH_MAX_POSITIONS")) : QueueService.MAX_POSITIONS;
+    private static final MessageBatcher<QueueMessage> BATCHER = new MessageBatcher<>(BATCH_LINGER_MS, BATCH_MAX_POSITIONS);
+    private static final String SUBJECT_FORMAT = "/containers/%s/blobs/%s/%s";
 
     @FunctionName("PaymentPositionDequeueFunction")
     public void run(
-            @QueueTrigger(name = "ValidPositionsTrigger", queueName = "%VALID_POSITIONS_QUEUE%", connection = "GPD_SA_CONNECTION_STRING") String message,
+            // binary: the compact codecs are not text, see QueueMessageCodec
+            @QueueTrigger(name = "ValidPositionsTrigger", queueName = "%VALID_POSITIONS_QUEUE%", connection = "GPD_SA_CONNECTION_STRING", dataType = "binary") byte[] message,
             final ExecutionContext ctx) {
         Logger logger = ctx.getLogger();
         String invocationId = ctx.getInvocationId();
-        ObjectMapper objectMapper = new ObjectMapper();
-        objectMapper.registerModule(new JavaTimeModule());
-        String subjectFormat = "/containers/%s/blobs/%s/%s";       
-        String subject = String.format(subjectFormat,"NA","NA","NA");
+        String payloadBroker = null;
+        String payloadBlob = null;
         try {
-            QueueMessage msg = objectMapper.readValue(message, QueueMessage.class);
-            // extract from message
-            String key = msg.getUploadKey();
-            String orgFiscalCode = msg.getOrganizationFiscalCode();
-            // process message request
-            Function<RequestGPD, ResponseGPD> method = getMethod(msg, getGPDClient(ctx));
-            getOperationService(ctx, method, getPositionMessage(msg)).processRequestInBulk();
-            // check if upload is completed
-            Status status = getStatusService(ctx).getStatus(invocationId, orgFiscalCode, key);
-            if(status.upload.getCurrent() == status.upload.getTotal()) {
-            	subject = String.format(subjectFormat,
-            			msg.getBrokerCode(),msg.getOrganizationFiscalCode(),msg.getUploadKey());
-            	// Unlock idempotency key
-            	IdempotencyUploadTracker.unlock(subject);
-                LocalDateTime endTime = LocalDateTime.now();
-                status.upload.setEnd(endTime);
-                getStatusService(ctx).updateStatusEndTime(orgFiscalCode, key, endTime);
-                generateReport(logger, key, status);
+            QueueMessage msg = QueueMessageCodec.decode(message, RAW_POSITIONS);
+            if (msg.getPayloadBlob() != null) {
+                // claim-check: the chunk is read back from the staging blob, deleted once processed
+                payloadBroker = msg.getBrokerCode();
+                payloadBlob = msg.getPayloadBlob();
+                msg = loadPayload(ctx, msg);
             }
-            Runtime.getRuntime().gc();
+            if (BATCH_ENABLED) {
+                // returns once the merged request holding this message has been processed, the failure is shared
+                BATCHER.submit(getBatchKey(msg), msg, countPositions(msg), messages -> processMessage(ctx, mergeMessages(ctx, messages),
+                        messages.stream().map(m -> getPositionMessage(m).getIUPDList()).toList()));
+            } else {
+                processMessage(ctx, msg);
+            }
+            if (payloadBlob != null)
+                deletePayload(ctx, payloadBroker, payloadBlob);
+            logger.log(Level.FINE, () -> String.format("[id=%s][ServiceFunction] Admission metrics: %s", invocationId, AdmissionController.getInstance().getMetrics()));
         } catch (Exception e) {
             logger.log(Level.SEVERE, () -> String.format("[id=%s][ServiceFunction] Processing function exception: %s, message: %s, caused by: %s, localized-message: %s",
                     invocationId, e.getClass(), e.getMessage(), e.getCause(), e.getLocalizedMessage()));
-            // Unlock idempotency key
-            IdempotencyUploadTracker.unlock(subject);
-            
+            // the lock is released only with its real subject, by completeUpload: the other chunks of the upload may still be in progress
+            // the message goes back to the queue to be retried (up to maxDequeueCount), with its staged payload
+            throw e instanceof RuntimeException runtimeException ? runtimeException : new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    public void processMessage(ExecutionContext ctx, QueueMessage msg) throws Exception {
+        processMessage(ctx, msg, List.of(getPositionMessage(msg).getIUPDList()));
+    }
+
+    // chunks: IUPDs of the queue messages merged in msg, the responses of each one are recorded apart
+    public void processMessage(ExecutionContext ctx, QueueMessage msg, List<List<String>> chunks) throws Exception {
+        String invocationId = ctx.getInvocationId();
+        // extract from message
+        String key = msg.getUploadKey();
+        String orgFiscalCode = msg.getOrganizationFiscalCode();
+        String subject = String.format(SUBJECT_FORMAT, msg.getBrokerCode(), orgFiscalCode, key);
+        // process message request
+        Function<RequestGPD, ResponseGPD> method = getMethod(msg, getGPDClient(ctx));
+        getOperationService(ctx, method, getPositionMessage(msg)).processRequestInBulk(chunks);
+        // check if upload is completed
+        Status status = getStatusService(ctx).getStatus(invocationId, orgFiscalCode, key);
+        if (status.upload.getEnd() != null) {
+            // completed before its total was reached (reading of the blob aborted): the report is refreshed with this chunk
+            generateReport(ctx.getLogger(), invocationId, key, status);
+        } else if(status.upload.getCurrent() == status.upload.getTotal() && !status.upload.isIngesting()) {
+            completeUpload(ctx, subject, orgFiscalCode, key, status);
+        } else {
+            // the upload is making progress: keep its lock alive
+            IdempotencyUploadTracker.renew(subject);
         }
     }
 
-    public boolean generateReport(Logger logger, String uploadKey, Status status) throws JsonProcessingException {
-        ObjectMapper objectMapper = new ObjectMapper();
-        objectMapper.enable(SerializationFeature.INDENT_OUTPUT);
-        objectMapper.registerModule(new JavaTimeModule());
-        return BlobRepository.getInstance(logger).uploadReport(objectMapper.writeValueAsString(MapUtils.convert(status)), status.getBrokerID(), status.getFiscalCode(), uploadKey + ".json", status.getServiceType());
+    // messages can be merged only if they lead to the same GPD request and retry
+    public String getBatchKey(QueueMessage msg) {
+        return String.join("|", msg.getUploadKey(), msg.getOrganizationFiscalCode(), msg.getBrokerCode(),
+                String.valueOf(msg.getCrudOperation()), String.valueOf(msg.getServiceType()), String.valueOf(msg.getRetryCounter()),
+                String.valueOf(msg.getRawPaymentPositions() != null));
+    }
+
+    public int countPositions(QueueMessage msg) {
+        if (msg.getRawPaymentPositions() != null)
+            return msg.getRawPaymentPositions().size();
+        if (msg.getPaymentPositions() != null)
+            return msg.getPaymentPositions().size();
+        return msg.getPaymentPositionIUPDs() != null ? msg.getPaymentPositionIUPDs().size() : 0;
+    }
+
+    // messages with the same batch key: the positions are concatenated in the order of arrival
+    public QueueMessage mergeMessages(ExecutionContext ctx, List<QueueMessage> messages) {
+        QueueMessage first = messages.get(0);
+        if (messages.size() == 1)
+            return first;
+
+        QueueMessage merged = first.toBuilder().payloadBlob(null).firstIUPD(null).lastIUPD(null).build();
+        if (first.getRawPaymentPositions() != null)
+            merged.setRawPaymentPositions(messages.stream().flatMap(m -> m.getRawPaymentPositions().stream()).toList());
+        else if (first.getPaymentPositions() != null)
+            merged.setPaymentPositions(messages.stream().flatMap(m -> Optional.ofNullable(m.getPaymentPositions()).orElse(List.of()).stream()).toList());
+        else
+            merged.setPaymentPositionIUPDs(messages.stream().flatMap(m -> Optional.ofNullable(m.getPaymentPositionIUPDs()).orElse(List.of()).stream()).toList());
+        ctx.getLogger().log(Level.INFO, () -> String.format("[id=%s][ServiceFunction] Merged %s messages, %s positions, upload key: %s",
+                ctx.getInvocationId(), messages.size(), countPositions(merged), first.getUploadKey()));
+        return merged;
+    }
+
+    // the staged payload is streamed into the message, the retry counter is the one of the queue message
+    public QueueMessage loadPayload(ExecutionContext ctx, QueueMessage reference) throws IOException {
+        try (InputStream inputStream = BlobRepository.getInstance(ctx.getLogger()).openPayload(reference.getBrokerCode(), reference.getPayloadBlob())) {
+            QueueMessage payload = RAW_POSITIONS
+                                           ? RawMessageReader.read(new String(inputStream.readAllBytes(), StandardCharsets.UTF_8))
+                                           : ObjectMapperUtils.QUEUE_MESSAGE_READER.readValue(inputStream);
+            payload.setRetryCounter(reference.getRetryCounter());
+            return payload;
+        }
+    }
+
+    public void deletePayload(ExecutionContext ctx, String broker, String payloadBlob) {
+        BlobRepository.getInstance(ctx.getLogger()).deletePayload(broker, payloadBlob);
+    }
+
+    // shared with ValidationFunction: the upload may be completed by the last chunk or at the end of the blob reading
+    public void completeUpload(ExecutionContext ctx, String subject, String orgFiscalCode, String key, Status status) throws AppException {
+        // Unlock idempotency key
+        IdempotencyUploadTracker.unlock(subject);
+        LocalDateTime endTime = LocalDateTime.now();
+        status.upload.setEnd(endTime);
+        getStatusService(ctx).updateStatusEndTime(orgFiscalCode, key, endTime);
+        generateReport(ctx.getLogger(), ctx.getInvocationId(), key, status);
+    }
+
+    public boolean generateReport(Logger logger, String invocationId, String uploadKey, Status status) throws AppException {
+        // the chunk responses are sharded: merge them with those written in the Status by previous versions
+        ArrayList<ResponseEntry> responses = new ArrayList<>(Optional.ofNullable(status.upload.getResponses()).orElse(new ArrayList<>()));
+        responses.addAll(getShardResponses(logger, invocationId, uploadKey, status));
+        status.upload.setResponses(responses);
+        return BlobRepository.getInstance(logger).uploadReport(MapUtils.convert(status), status.getBrokerID(), status.getFiscalCode(), uploadKey + ".json", status.getServiceType());
+    }
+
+    public List<ResponseEntry> getShardResponses(Logger logger, String invocationId, String uploadKey, Status status) throws AppException {
+        return StatusService.getInstance(logger).getResponses(invocationId, status.getFiscalCode(), uploadKey);
     }
 
     public Function<RequestGPD, ResponseGPD> getMethod(QueueMessage msg, GPDClient gpdClient) {
@@ -92,7 +199,7 @@ public class ServiceFunction {
 
     public DebtPositionMessage getPositionMessage(QueueMessage queueMessage) {
         return switch (queueMessage.getCrudOperation()) {
-            case CREATE, UPDATE -> new UpsertMessage(queueMessage);
+            case CREATE, UPDATE -> queueMessage.getRawPaymentPositions() != null ? new RawUpsertMessage(queueMessage) : new UpsertMessage(queueMessage);
             case DELETE -> new DeleteMessage(queueMessage);
         };
     }
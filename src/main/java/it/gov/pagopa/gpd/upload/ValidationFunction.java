@@ -1,13 +1,10 @@
 package it.gov.pagopa.gpd.upload;
 
 import com.azure.core.implementation.serializer.DefaultJsonSerializer;
-import com.azure.core.util.BinaryData;
 import com.azure.messaging.eventgrid.EventGridEvent;
 import com.azure.messaging.eventgrid.systemevents.StorageBlobCreatedEventData;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
-import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.microsoft.azure.functions.ExecutionContext;
 import com.microsoft.azure.functions.annotation.FunctionName;
 import com.microsoft.azure.functions.annotation.QueueTrigger;
@@ -15,18 +12,31 @@ import it.gov.pagopa.gpd.upload.entity.Status;
 import it.gov.pagopa.gpd.upload.exception.AppException;
 import it.gov.pagopa.gpd.upload.model.CRUDOperation;
 import it.gov.pagopa.gpd.upload.model.QueueMessage;
-import it.gov.pagopa.gpd.upload.model.UploadInput;
 import it.gov.pagopa.gpd.upload.model.enumeration.ServiceType;
 import it.gov.pagopa.gpd.upload.model.pd.PaymentPosition;
 import it.gov.pagopa.gpd.upload.repository.BlobRepository;
 import it.gov.pagopa.gpd.upload.service.QueueService;
 import it.gov.pagopa.gpd.upload.service.StatusService;
+import it.gov.pagopa.gpd.upload.util.AdmissionController;
 import it.gov.pagopa.gpd.upload.util.GPDValidator;
 import it.gov.pagopa.gpd.upload.util.IdempotencyUploadTracker;
+import it.gov.pagopa.gpd.upload.util.ObjectMapperUtils;
+import it.gov.pagopa.gpd.upload.util.PipelineStage;
+import it.gov.pagopa.gpd.upload.util.PreflightValidator;
+import it.gov.pagopa.gpd.upload.util.UploadInputReader;
 
-import java.time.LocalDateTime;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -41,117 +51,379 @@ import static it.gov.pagopa.gpd.upload.util.Constants.SERVICE_TYPE_KEY;
  */
 public class ValidationFunction {
     private static final String LOG_PREFIX = "[id=%s][upload=%s][ValidationFunction]:";
+    private static final String SUBJECT_FORMAT = "/containers/%s/blobs/%s/%s";
+    // max number of positions bound in memory at the same time while reading the blob
+    public static final Integer SEGMENT_SIZE = System.getenv("SEGMENT_SIZE") != null ? Integer.parseInt(System.getenv("SEGMENT_SIZE")) : 1000;
+    // events of the same queue message handled at the same time
+    private static final int EVENT_CONCURRENCY = System.getenv("EVENT_CONCURRENCY") != null ? Integer.parseInt(System.getenv("EVENT_CONCURRENCY")) : 4;
+    // an event rejected by the admission control is put back to its queue, visible after this delay
+    private static final int ADMISSION_REQUEUE_DELAY_SECONDS = System.getenv("ADMISSION_REQUEUE_DELAY_SECONDS") != null ? Integer.parseInt(System.getenv("ADMISSION_REQUEUE_DELAY_SECONDS")) : 60;
+    // blobs being processed at the same time on this instance, weighted by size
+    private static final int MEMORY_BUDGET_KB = System.getenv("MEMORY_BUDGET_MB") != null ? Integer.parseInt(System.getenv("MEMORY_BUDGET_MB")) * 1024 : 256 * 1024;
+    private static final Semaphore MEMORY_BUDGET = new Semaphore(MEMORY_BUDGET_KB, true);
+    private static final ExecutorService EVENT_EXECUTOR = Executors.newFixedThreadPool(EVENT_CONCURRENCY, runnable -> {
+        Thread thread = new Thread(runnable, "blob-event");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // parse -> validate -> pack -> enqueue run concurrently, connected by bounded queues
+    private static final boolean PIPELINE_ENABLED = System.getenv("PIPELINE_ENABLED") != null && Boolean.parseBoolean(System.getenv("PIPELINE_ENABLED"));
+    private static final int PIPELINE_SEGMENTS = System.getenv("PIPELINE_SEGMENTS") != null ? Integer.parseInt(System.getenv("PIPELINE_SEGMENTS")) : 2;
+    private static final int PIPELINE_MESSAGES = System.getenv("PIPELINE_MESSAGES") != null ? Integer.parseInt(System.getenv("PIPELINE_MESSAGES")) : 64;
+    private static final Pattern SUBJECT_PATTERN = Pattern.compile("/containers/(\\w+)/blobs/(\\w+)/input/([\\w\\-\\h]+\\.[Jj][Ss][Oo][Nn])");
+    // blobs written by the claim-check mode, they are not uploads
+    private static final Pattern STAGING_PATTERN = Pattern.compile("/containers/\\w+/blobs/+\\w+/staging/");
 
     @FunctionName("BlobQueueEventFunction")
     public void run(
             @QueueTrigger(name = "BlobCreatedEventTrigger", queueName = "%BLOB_EVENTS_QUEUE%", connection = "GPD_SA_CONNECTION_STRING") String events,
             final ExecutionContext context) {
 
+        // each event is kept with its JSON, so that it can be put back to the queue on its own
+        List<BlobEvent> blobEvents = new ArrayList<>();
+        for (String json : splitEvents(events)) {
+            for (EventGridEvent event : EventGridEvent.fromString(json)) {
+                if (event.getEventType().equals("Microsoft.Storage.BlobCreated"))
+                    blobEvents.add(new BlobEvent(json, event));
+            }
+        }
+
+        if (blobEvents.size() == 1) {
+            this.handleOrRequeue(context, blobEvents.get(0));
+            return;
+        }
+
+        // each event is handled on its own: a skipped, failed or rejected event doesn't affect the others
+        List<CompletableFuture<Void>> handled = new ArrayList<>(blobEvents.size());
+        for (BlobEvent blobEvent : blobEvents) {
+            handled.add(CompletableFuture.runAsync(() -> this.handleOrRequeue(context, blobEvent), EVENT_EXECUTOR));
+        }
+        try {
+            CompletableFuture.allOf(handled.toArray(new CompletableFuture[0])).join();
+        } catch (CompletionException e) {
+            // every event has been handled, the failure makes the message retried
+            throw e.getCause() instanceof RuntimeException cause ? cause : e;
+        }
+    }
+
+    private record BlobEvent(String json, EventGridEvent event) {
+    }
+
+    private static List<String> splitEvents(String events) {
+        try {
+            JsonNode root = ObjectMapperUtils.TREE_READER.readTree(events);
+            if (!root.isArray())
+                return List.of(events);
+            List<String> split = new ArrayList<>(root.size());
+            root.forEach(node -> split.add(node.toString()));
+            return split;
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Malformed blob events message: " + e.getMessage(), e);
+        }
+    }
+
+    private void handleOrRequeue(ExecutionContext context, BlobEvent blobEvent) {
+        if (this.handleEvent(context, blobEvent.event()))
+            return;
+        // rejected by the admission control: only this event is handled again, later
+        if (!this.requeueEvent(context, blobEvent.json()))
+            throw new IllegalStateException("Upload rejected by admission control and not requeued: " + blobEvent.event().getSubject());
+    }
+
+    public boolean requeueEvent(ExecutionContext context, String event) {
+        return QueueService.getInstance(context.getLogger()).requeueEvent(context.getInvocationId(), event, ADMISSION_REQUEUE_DELAY_SECONDS);
+    }
+
+    /**
+     * @return false if the upload has been rejected by the admission control and must be handled later
+     */
+    public boolean handleEvent(ExecutionContext context, EventGridEvent event) {
         Logger logger = context.getLogger();
+        logger.log(Level.INFO, () -> String.format(LOG_PREFIX + "Call event type %s handler.", context.getInvocationId(), "-", event.getEventType()));
 
-        List<EventGridEvent> eventGridEvents = EventGridEvent.fromString(events);
+        // no upper bound on the size: the blob is streamed and processed in segments
+        StorageBlobCreatedEventData blobData = event.getData().toObject(StorageBlobCreatedEventData.class, new DefaultJsonSerializer());
+        if (blobData.getContentLength() == 0) {
+            logger.log(Level.INFO, () -> "File size equal to zero");
+            return true; // skip event
+        }
 
-        String subjectFormat = "/containers/%s/blobs/%s/%s";
-        String subject;
+        logger.log(Level.INFO, () -> String.format(LOG_PREFIX + "Blob event subject: %s", context.getInvocationId(), "-", event.getSubject()));
 
-        for (EventGridEvent event : eventGridEvents) {
-            if (event.getEventType().equals("Microsoft.Storage.BlobCreated")) {
-                logger.log(Level.INFO, () -> String.format(LOG_PREFIX + "Call event type %s handler.", context.getInvocationId(), "-", event.getEventType()));
+        if (STAGING_PATTERN.matcher(event.getSubject()).find()) {
+            logger.log(Level.FINE, () -> String.format(LOG_PREFIX + "Claim-check payload, skipped", context.getInvocationId(), "-"));
+            return true; // skip event
+        }
 
-                StorageBlobCreatedEventData blobData = event.getData().toObject(StorageBlobCreatedEventData.class, new DefaultJsonSerializer());
-                if (blobData.getContentLength() > 1e+8) { // if file greater than 100 MB
-                    logger.log(Level.INFO, () -> "File size too large");
-                    return; // skip event
-                }
-                if (blobData.getContentLength() == 0) {
-                    logger.log(Level.INFO, () -> "File size equal to zero");
-                    return; // skip event
-                }
+        Matcher matcher = SUBJECT_PATTERN.matcher(event.getSubject());
 
-                logger.log(Level.INFO, () -> String.format(LOG_PREFIX + "Blob event subject: %s", context.getInvocationId(), "-", event.getSubject()));
-
-                Pattern pattern = Pattern.compile("/containers/(\\w+)/blobs/(\\w+)/input/([\\w\\-\\h]+\\.[Jj][Ss][Oo][Nn])");
-                Matcher matcher = pattern.matcher(event.getSubject());
-
-                // Check if the pattern is found
-                if (matcher.find()) {
-                    String broker = matcher.group(1);    // broker container as broke_code
-                    String fiscalCode = matcher.group(2);   // creditor institution directory
-                    String filename = matcher.group(3);     // e.g. 77777777777c8a1.json
-                    String key = filename.substring(0, filename.indexOf("."));
-
-                    // Attempt to acquire a lock for the current upload event to ensure idempotency.
-                    // If another instance is already processing the same upload (same subject),
-                    // skip processing to avoid duplicate handling of the same file.
-                    subject = String.format(subjectFormat,
-                            broker, fiscalCode, key);
-                    if (!IdempotencyUploadTracker.tryLock(subject)) {
-                        logger.log(Level.WARNING, () -> String.format(LOG_PREFIX + "Upload already in progress for event subject: %s", context.getInvocationId(), "-", event.getSubject()));
-                        return; // skip event
-                    }
+        // Check if the pattern is found
+        if (matcher.find()) {
+            String broker = matcher.group(1);    // broker container as broke_code
+            String fiscalCode = matcher.group(2);   // creditor institution directory
+            String filename = matcher.group(3);     // e.g. 77777777777c8a1.json
+            String key = filename.substring(0, filename.indexOf("."));
 
-                    Map<String, Object> responseDownload = this.downloadBlob(context, broker, fiscalCode, filename);
-                    BinaryData content = (BinaryData) responseDownload.get(BLOB_KEY);
-                    ServiceType serviceType = (ServiceType) responseDownload.get(SERVICE_TYPE_KEY);
+            // Attempt to acquire a lock for the current upload event to ensure idempotency.
+            // If another instance is already processing the same upload (same subject),
+            // skip processing to avoid duplicate handling of the same file.
+            String subject = String.format(SUBJECT_FORMAT,
+                    broker, fiscalCode, key);
+            if (!IdempotencyUploadTracker.tryLock(subject)) {
+                logger.log(Level.WARNING, () -> String.format(LOG_PREFIX + "Upload already in progress for event subject: %s", context.getInvocationId(), "-", event.getSubject()));
+                return true; // skip event
+            }
 
-                    logger.log(Level.INFO, () -> String.format(LOG_PREFIX + "broker: %s, fiscalCode: %s, filename: %s",
-                            context.getInvocationId(), key, broker, fiscalCode, filename));
-                    try {
-                        if (!this.validateBlob(context, broker, fiscalCode, key, content, serviceType))
-                            throw new AppException("Invalid blob");
-                    } catch (AppException e) {
-                        logger.log(Level.SEVERE, () -> String.format("[id=%s][ValidationFunction] Exception %s", context.getInvocationId(), e.getMessage()));
-                        // Unlock idempotency key
-                        IdempotencyUploadTracker.unlock(subject);
-                    }
+            if (!this.admit(context, blobData.getContentLength())) {
+                IdempotencyUploadTracker.unlock(subject);
+                return false;
+            }
+
+            int weight = budgetWeight(blobData.getContentLength());
+            MEMORY_BUDGET.acquireUninterruptibly(weight);
+            try {
+                Map<String, Object> responseDownload = this.downloadBlob(context, broker, fiscalCode, filename);
+                @SuppressWarnings("unchecked")
+                Supplier<InputStream> content = (Supplier<InputStream>) responseDownload.get(BLOB_KEY);
+                ServiceType serviceType = (ServiceType) responseDownload.get(SERVICE_TYPE_KEY);
 
-                    Runtime.getRuntime().gc();
-                } else {
-                    logger.log(Level.SEVERE, () -> String.format("[id=%s][ValidationFunction] No match found in the input string.", context.getInvocationId()));
+                logger.log(Level.INFO, () -> String.format(LOG_PREFIX + "broker: %s, fiscalCode: %s, filename: %s",
+                        context.getInvocationId(), key, broker, fiscalCode, filename));
+                try {
+                    if (!this.validateBlob(context, broker, fiscalCode, key, content, serviceType))
+                        throw new AppException("Invalid blob");
+                } catch (AppException e) {
+                    logger.log(Level.SEVERE, () -> String.format("[id=%s][ValidationFunction] Exception %s", context.getInvocationId(), e.getMessage()));
+                    // Unlock idempotency key
+                    IdempotencyUploadTracker.unlock(subject);
                 }
+            } finally {
+                MEMORY_BUDGET.release(weight);
             }
+        } else {
+            logger.log(Level.SEVERE, () -> String.format("[id=%s][ValidationFunction] No match found in the input string.", context.getInvocationId()));
+        }
+        return true;
+    }
+
+    public boolean admit(ExecutionContext ctx, Long contentLength) {
+        AdmissionController admissionController = AdmissionController.getInstance();
+        boolean admitted = admissionController.admit(contentLength == null ? 0 : contentLength);
+        if (!admitted) {
+            ctx.getLogger().log(Level.WARNING, () -> String.format(LOG_PREFIX + "Heap headroom too low, metrics: %s",
+                    ctx.getInvocationId(), "-", admissionController.getMetrics()));
         }
+        return admitted;
     }
 
-    public boolean validateBlob(ExecutionContext ctx, String broker, String fiscalCode, String uploadKey, BinaryData content, ServiceType serviceType) throws AppException {
-        int size = 0;
-        ObjectMapper om = new ObjectMapper();
-        om.registerModule(new JavaTimeModule());
-        om.disable(SerializationFeature.INDENT_OUTPUT); // remove useless whitespaces from message
+    // blob size in KB, capped to the whole budget: a blob larger than the budget is processed alone
+    private static int budgetWeight(Long contentLength) {
+        long kb = contentLength == null ? 1 : Math.max(1, contentLength / 1024);
+        return (int) Math.min(kb, MEMORY_BUDGET_KB);
+    }
 
+    public boolean validateBlob(ExecutionContext ctx, String broker, String fiscalCode, String uploadKey, Supplier<InputStream> content, ServiceType serviceType) throws AppException {
+        UploadInputReader reader = new UploadInputReader();
+
+        // the total is known once the structure of the blob has been checked
+        Status status = this.createStatus(ctx, broker, fiscalCode, uploadKey, 0, serviceType);
+
+        if (status.getUpload().getEnd() != null) { // already exist and upload is completed, so no-retry
+            return false;
+        }
+
+        // duplicates are checked across the whole upload
+        PreflightValidator preflight = PreflightValidator.ENABLED ? new PreflightValidator() : null;
+
+        boolean ingested = false;
         try {
-            // deserialize UploadInput from JSON to Object
-            UploadInput input = om.readValue(content.toString(), UploadInput.class);
+            // first pass without binding: an invalid input is rejected before anything is enqueued
+            UploadInputReader.Summary scanned;
+            try (InputStream inputStream = content.get()) {
+                scanned = reader.scan(inputStream);
+            }
+            if (!scanned.validOneOf())
+                return false;
+            this.startIngestion(ctx, fiscalCode, uploadKey, scanned.size());
 
-            if (!input.validOneOf()) {
+            UploadInputReader.Summary summary = readBlob(ctx, reader, content, scanned.getOperation(), preflight, broker, fiscalCode, uploadKey, serviceType);
+            if (!summary.isCompleted())
                 return false;
+
+            Status ended = this.endIngestion(ctx, fiscalCode, uploadKey);
+            ingested = true;
+            // every chunk may already be processed (or no position was valid): the upload is completed here
+            if (ended != null && ended.getUpload().getCurrent() == ended.getUpload().getTotal()) {
+                this.completeUpload(ctx, String.format(SUBJECT_FORMAT, broker, fiscalCode, uploadKey), fiscalCode, uploadKey, ended);
             }
+            return true;
+        } catch (IOException e) {
+            ctx.getLogger().log(Level.SEVERE, () -> String.format(LOG_PREFIX + "Processing function %s: %s, caused by: %s",
+                    ctx.getInvocationId(), uploadKey, e.getClass().getSimpleName(), e.getMessage(), e.getCause()));
+            return false;
+        } finally {
+            // whatever the failure, the Status must not stay ingesting
+            if (!ingested)
+                this.abortIngestion(ctx, status, broker, fiscalCode, uploadKey);
+        }
+    }
 
-            List<PaymentPosition> pps = input.getPaymentPositions();
-            List<String> iupds = input.getPaymentPositionIUPDs();
+    // the upload won't reach its total: completed now with the chunks processed so far, the late ones refresh its report
+    private void abortIngestion(ExecutionContext ctx, Status status, String broker, String fiscalCode, String uploadKey) {
+        Status aborted = status;
+        try {
+            Status ended = this.endIngestion(ctx, fiscalCode, uploadKey);
+            if (ended != null)
+                aborted = ended;
+        } catch (AppException | RuntimeException e) {
+            ctx.getLogger().log(Level.SEVERE, () -> String.format(LOG_PREFIX + "Error while ending the ingestion: %s", ctx.getInvocationId(), uploadKey, e.getMessage()));
+        }
+        try {
+            this.completeUpload(ctx, String.format(SUBJECT_FORMAT, broker, fiscalCode, uploadKey), fiscalCode, uploadKey, aborted);
+        } catch (AppException | RuntimeException e) {
+            ctx.getLogger().log(Level.SEVERE, () -> String.format(LOG_PREFIX + "Error while completing the aborted upload: %s", ctx.getInvocationId(), uploadKey, e.getMessage()));
+        }
+    }
 
-            if (pps != null)
-                size = pps.size();
-            else if (iupds != null)
-                size = iupds.size();
+    private UploadInputReader.Summary readBlob(ExecutionContext ctx, UploadInputReader reader, Supplier<InputStream> content, CRUDOperation operation,
+                                               PreflightValidator preflight, String broker, String fiscalCode, String uploadKey, ServiceType serviceType) throws IOException, AppException {
+        if (PIPELINE_ENABLED)
+            return readBlobPipelined(ctx, reader, content, operation, preflight, broker, fiscalCode, uploadKey, serviceType);
 
-            Status status = this.createStatus(ctx, broker, fiscalCode, uploadKey, size, serviceType);
-            if (pps != null) GPDValidator.validate(ctx, pps, fiscalCode, uploadKey);
+        try (InputStream inputStream = content.get()) {
+            return reader.read(inputStream, operation, SEGMENT_SIZE,
+                    (op, pps) -> {
+                        IdempotencyUploadTracker.renew(String.format(SUBJECT_FORMAT, broker, fiscalCode, uploadKey));
+                        GPDValidator.validate(ctx, pps, fiscalCode, uploadKey, preflight);
+                        return enqueue(ctx, op, pps, null, uploadKey, fiscalCode, broker, serviceType);
+                    },
+                    (op, iupds) -> {
+                        IdempotencyUploadTracker.renew(String.format(SUBJECT_FORMAT, broker, fiscalCode, uploadKey));
+                        return enqueue(ctx, op, null, iupds, uploadKey, fiscalCode, broker, serviceType);
+                    });
+        }
+    }
 
-            if (status.getUpload().getEnd() != null) { // already exist and upload is completed, so no-retry
-                return false;
+    /**
+     * Same steps as the sequential reading, each one on its own thread: the parser hands over segments to the validation,
+     * which hands them over to the packing, which hands over messages to the enqueuing.
+     * Queue I/O overlaps parsing and validation, and the first messages are sent while the blob is still being read.
+     */
+    private UploadInputReader.Summary readBlobPipelined(ExecutionContext ctx, UploadInputReader reader, Supplier<InputStream> content, CRUDOperation operation,
+                                                        PreflightValidator preflight, String broker, String fiscalCode, String uploadKey, ServiceType serviceType) throws IOException, AppException {
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        // messages are sent asynchronously, at most QUEUE_CONCURRENCY in flight
+        Semaphore inFlight = new Semaphore(QueueService.QUEUE_CONCURRENCY);
+        PipelineStage<byte[]> enqueueStage = new PipelineStage<>("upload-enqueue", PIPELINE_MESSAGES, message -> {
+            inFlight.acquire();
+            CompletableFuture<Void> sent;
+            try {
+                sent = this.sendMessage(ctx, message);
+            } catch (RuntimeException e) {
+                inFlight.release();
+                throw e;
             }
+            sent.whenComplete((result, e) -> {
+                if (e != null)
+                    failure.compareAndSet(null, e.getCause() instanceof Exception cause ? cause : new AppException(e.getMessage()));
+                inFlight.release();
+            });
+        }, failure);
+        PipelineStage<Segment> packStage = new PipelineStage<>("upload-pack", PIPELINE_SEGMENTS, segment -> {
+            for (byte[] message : this.packMessages(ctx, segment.operation(), segment.positions(), segment.iupds(), uploadKey, fiscalCode, broker, serviceType))
+                enqueueStage.submit(message);
+        }, failure);
+        PipelineStage<Segment> validateStage = new PipelineStage<>("upload-validate", PIPELINE_SEGMENTS, segment -> {
+            if (segment.positions() != null)
+                this.validateSegment(ctx, segment.positions(), fiscalCode, uploadKey, preflight);
+            packStage.submit(segment);
+        }, failure);
 
-            // enqueue chunk and other input to form message
-            return enqueue(ctx, om, input.getOperation(), pps, iupds, uploadKey, fiscalCode, broker, serviceType);
-        } catch (JsonProcessingException e) {
-            ctx.getLogger().log(Level.SEVERE, () -> String.format(LOG_PREFIX + "Processing function JsonMappingException: %s, caused by: %s",
-                    ctx.getInvocationId(), uploadKey, e.getMessage(), e.getCause()));
-            StatusService.getInstance(ctx.getLogger()).updateStatusEndTime(fiscalCode, uploadKey, LocalDateTime.now());
-            return false;
+        UploadInputReader.Summary summary;
+        try {
+            try (InputStream inputStream = content.get()) {
+                summary = reader.read(inputStream, operation, SEGMENT_SIZE,
+                        (op, pps) -> submit(validateStage, new Segment(op, pps, null), broker, fiscalCode, uploadKey, failure),
+                        (op, iupds) -> submit(validateStage, new Segment(op, null, iupds), broker, fiscalCode, uploadKey, failure));
+            } finally {
+                // every stage completes what has been handed over, each in its own finally: a failed finish doesn't leave the next stages running
+                try {
+                    finish(validateStage);
+                } finally {
+                    try {
+                        finish(packStage);
+                    } finally {
+                        try {
+                            finish(enqueueStage);
+                        } finally {
+                            inFlight.acquire(QueueService.QUEUE_CONCURRENCY); // stages stopped: every message sent, also on failure
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AppException("Upload pipeline interrupted: " + uploadKey);
+        }
+
+        Exception e = failure.get();
+        if (e instanceof AppException appException)
+            throw appException;
+        if (e instanceof IOException ioException)
+            throw ioException;
+        if (e != null)
+            throw new AppException("Upload pipeline failed: " + e.getMessage());
+        return summary;
+    }
+
+    // an interrupted finish aborts the stage, instead of leaving its thread waiting for the end of the items
+    private static void finish(PipelineStage<?> stage) throws InterruptedException {
+        try {
+            stage.finish();
+        } catch (InterruptedException e) {
+            stage.abort(e);
+            throw e;
         }
     }
 
+    // returns false to stop reading when a stage has failed
+    private boolean submit(PipelineStage<Segment> stage, Segment segment, String broker, String fiscalCode, String uploadKey, AtomicReference<Exception> failure) throws AppException {
+        IdempotencyUploadTracker.renew(String.format(SUBJECT_FORMAT, broker, fiscalCode, uploadKey));
+        try {
+            stage.submit(segment);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AppException("Upload pipeline interrupted: " + uploadKey);
+        }
+        return failure.get() == null;
+    }
+
+    private record Segment(CRUDOperation operation, List<PaymentPosition> positions, List<String> iupds) {
+    }
+
+    public boolean validateSegment(ExecutionContext ctx, List<PaymentPosition> paymentPositions, String fiscalCode, String uploadKey, PreflightValidator preflight) {
+        return GPDValidator.validate(ctx, paymentPositions, fiscalCode, uploadKey, preflight);
+    }
+
+    public List<byte[]> packMessages(ExecutionContext ctx, CRUDOperation operation, List<PaymentPosition> paymentPositions, List<String> IUPDList, String uploadKey, String fiscalCode, String broker, ServiceType serviceType) throws JsonProcessingException, AppException {
+        QueueService queueService = QueueService.getInstance(ctx.getLogger());
+        QueueMessage.QueueMessageBuilder builder = queueService.generateMessageBuilder(operation, uploadKey, fiscalCode, broker, serviceType);
+        if (QueueService.CLAIM_CHECK_ENABLED) {
+            return switch (operation) {
+                case CREATE, UPDATE -> queueService.claimCheckUpsertMessages(paymentPositions, builder, QueueService.CLAIM_CHECK_CHUNK_SIZE);
+                case DELETE -> queueService.claimCheckDeleteMessages(IUPDList, builder, QueueService.CLAIM_CHECK_CHUNK_SIZE);
+            };
+        }
+        return switch (operation) {
+            case CREATE, UPDATE -> queueService.packUpsertMessages(paymentPositions, builder, QueueService.MAX_POSITIONS);
+            case DELETE -> queueService.packDeleteMessages(IUPDList, builder);
+        };
+    }
+
+    public CompletableFuture<Void> sendMessage(ExecutionContext ctx, byte[] message) {
+        return QueueService.getInstance(ctx.getLogger()).enqueueAsync(ctx.getInvocationId(), message, 0);
+    }
+
     public Map<String, Object> downloadBlob(ExecutionContext ctx, String broker, String fiscalCode, String filename) {
         return BlobRepository.getInstance(ctx.getLogger()).download(broker, fiscalCode, filename);
     }
@@ -161,12 +433,32 @@ public class ValidationFunction {
                 .createStatus(ctx.getInvocationId(), broker, orgFiscalCode, uploadKey, size, serviceType);
     }
 
-    public boolean enqueue(ExecutionContext ctx, ObjectMapper om, CRUDOperation operation, List<PaymentPosition> paymentPositions, List<String> IUPDList, String uploadKey, String fiscalCode, String broker, ServiceType serviceType) {
+    public void startIngestion(ExecutionContext ctx, String orgFiscalCode, String uploadKey, int total) throws AppException {
+        StatusService.getInstance(ctx.getLogger()).startIngestion(ctx.getInvocationId(), orgFiscalCode, uploadKey, total);
+    }
+
+    public Status endIngestion(ExecutionContext ctx, String orgFiscalCode, String uploadKey) throws AppException {
+        return StatusService.getInstance(ctx.getLogger()).endIngestion(ctx.getInvocationId(), orgFiscalCode, uploadKey);
+    }
+
+    public void completeUpload(ExecutionContext ctx, String subject, String orgFiscalCode, String uploadKey, Status status) throws AppException {
+        new ServiceFunction().completeUpload(ctx, subject, orgFiscalCode, uploadKey, status);
+    }
+
+    public boolean enqueue(ExecutionContext ctx, CRUDOperation operation, List<PaymentPosition> paymentPositions, List<String> IUPDList, String uploadKey, String fiscalCode, String broker, ServiceType serviceType) {
         QueueService queueService = QueueService.getInstance(ctx.getLogger());
+        if (QueueService.CLAIM_CHECK_ENABLED) {
+            try {
+                return queueService.enqueueAll(ctx.getInvocationId(), packMessages(ctx, operation, paymentPositions, IUPDList, uploadKey, fiscalCode, broker, serviceType), 0);
+            } catch (JsonProcessingException | AppException e) {
+                ctx.getLogger().log(Level.SEVERE, () -> String.format(LOG_PREFIX + "Claim-check exception: %s", ctx.getInvocationId(), uploadKey, e.getMessage()));
+                return false;
+            }
+        }
         QueueMessage.QueueMessageBuilder builder = queueService.generateMessageBuilder(operation, uploadKey, fiscalCode, broker, serviceType);
         return switch (operation) {
-            case CREATE, UPDATE -> queueService.enqueueUpsertMessage(ctx, om, paymentPositions, builder, 0, null);
-            case DELETE -> queueService.enqueueDeleteMessage(ctx, om, IUPDList, builder, 0);
+            case CREATE, UPDATE -> queueService.enqueueUpsertMessage(ctx, paymentPositions, builder, 0, null);
+            case DELETE -> queueService.enqueueDeleteMessage(ctx, IUPDList, builder, 0);
         };
     }
 }
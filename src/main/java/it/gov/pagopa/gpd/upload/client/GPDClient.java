@@ -1,21 +1,28 @@
 package it.gov.pagopa.gpd.upload.client;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import com.microsoft.azure.functions.HttpMethod;
 import com.microsoft.azure.functions.HttpStatus;
 import it.gov.pagopa.gpd.upload.model.RequestGPD;
 import it.gov.pagopa.gpd.upload.model.ResponseGPD;
 import it.gov.pagopa.gpd.upload.model.RetryStep;
 import it.gov.pagopa.gpd.upload.util.MapUtils;
+import it.gov.pagopa.gpd.upload.util.ObjectMapperUtils;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.jboss.resteasy.client.jaxrs.ResteasyClientBuilder;
+import org.jboss.resteasy.client.jaxrs.engines.ApacheHttpClient43Engine;
 
 import javax.ws.rs.client.Client;
-import javax.ws.rs.client.ClientBuilder;
 import javax.ws.rs.client.Entity;
 import javax.ws.rs.client.Invocation;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -30,6 +37,22 @@ public class GPDClient {
     private static final String GPD_SUBSCRIPTION_KEY = System.getenv("GPD_SUBSCRIPTION_KEY");
     private static final String TO_PUBLISH_QUERY_PARAM = "toPublish";
     private static final boolean TO_PUBLISH_QUERY_VALUE = true;
+    private static final int MAX_CONNECTIONS_PER_ROUTE =
+            System.getenv("GPD_MAX_CONNECTIONS_PER_ROUTE") != null ? Integer.parseInt(System.getenv("GPD_MAX_CONNECTIONS_PER_ROUTE")) : 20;
+    private static final int MAX_CONNECTIONS =
+            System.getenv("GPD_MAX_CONNECTIONS") != null ? Integer.parseInt(System.getenv("GPD_MAX_CONNECTIONS")) : 50;
+    private static final long KEEP_ALIVE_MS =
+            System.getenv("GPD_KEEP_ALIVE_MS") != null ? Long.parseLong(System.getenv("GPD_KEEP_ALIVE_MS")) : 30000;
+    private static final long IDLE_EVICTION_MS =
+            System.getenv("GPD_IDLE_EVICTION_MS") != null ? Long.parseLong(System.getenv("GPD_IDLE_EVICTION_MS")) : 60000;
+    private static final int CONNECT_TIMEOUT_MS =
+            System.getenv("GPD_CONNECT_TIMEOUT_MS") != null ? Integer.parseInt(System.getenv("GPD_CONNECT_TIMEOUT_MS")) : 5000;
+    private static final int READ_TIMEOUT_MS =
+            System.getenv("GPD_READ_TIMEOUT_MS") != null ? Integer.parseInt(System.getenv("GPD_READ_TIMEOUT_MS")) : 60000;
+
+    // one pooled client for the whole worker: connections (and TLS sessions) are reused across calls
+    private static final PoolingHttpClientConnectionManager CONNECTION_MANAGER = createConnectionManager();
+    private static final Client CLIENT = createClient(CONNECTION_MANAGER);
     private Logger logger;
 
     public GPDClient(Logger logger) {
@@ -83,11 +106,43 @@ public class GPDClient {
     }
 
 
+    private static PoolingHttpClientConnectionManager createConnectionManager() {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(MAX_CONNECTIONS);
+        connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
+        return connectionManager;
+    }
+
+    private static Client createClient(PoolingHttpClientConnectionManager connectionManager) {
+        RequestConfig requestConfig = RequestConfig.custom()
+                                              .setConnectTimeout(CONNECT_TIMEOUT_MS)
+                                              .setConnectionRequestTimeout(CONNECT_TIMEOUT_MS)
+                                              .setSocketTimeout(READ_TIMEOUT_MS)
+                                              .build();
+        return new ResteasyClientBuilder()
+                       .httpEngine(new ApacheHttpClient43Engine(HttpClientBuilder.create()
+                                                                        .setConnectionManager(connectionManager)
+                                                                        .setDefaultRequestConfig(requestConfig)
+                                                                        // honour the server Keep-Alive header, capped to KEEP_ALIVE_MS
+                                                                        .setKeepAliveStrategy((response, context) -> {
+                                                                            long keepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                                                                            return keepAlive > 0 ? Math.min(keepAlive, KEEP_ALIVE_MS) : KEEP_ALIVE_MS;
+                                                                        })
+                                                                        .evictExpiredConnections()
+                                                                        .evictIdleConnections(IDLE_EVICTION_MS, TimeUnit.MILLISECONDS)
+                                                                        .build(), true))
+                       .build();
+    }
+
+    public PoolStats getPoolStats() {
+        return CONNECTION_MANAGER.getTotalStats();
+    }
+
     private Response callGPD(String httpMethod, String url, String body) {
-        Client client = ClientBuilder.newClient();
         String requestId = UUID.randomUUID().toString();
+        logger.log(Level.FINE, () -> String.format("[requestId=%s][%sDebtPositions] Connection pool %s", requestId, httpMethod, getPoolStats()));
         try {
-            Invocation.Builder builder = client.target(url)
+            Invocation.Builder builder = CLIENT.target(url)
                                                  .queryParam(TO_PUBLISH_QUERY_PARAM, TO_PUBLISH_QUERY_VALUE)
                                                  .request(MediaType.APPLICATION_JSON)
                                                  .header(HEADER_SUBSCRIPTION_KEY, GPD_SUBSCRIPTION_KEY)
@@ -106,8 +161,6 @@ public class GPDClient {
         int status = response.getStatus();
         // read the one-shot body
         String rawBody = safeReadBody(response);
-        ObjectMapper objectMapper = new ObjectMapper();
-        objectMapper.registerModule(new JavaTimeModule());
 
         if (status >= 200 && status < 300) {
             responseGPD = ResponseGPD.builder()
@@ -116,7 +169,7 @@ public class GPDClient {
                     .build();
         } else if (status >= 400 && status < 500) {
         	// skip retry if the status is 4xx
-            responseGPD = mapClientError(objectMapper, rawBody, status);
+            responseGPD = mapClientError(rawBody, status);
         } else {
             responseGPD = ResponseGPD.builder()
                     .status(status)
@@ -140,10 +193,10 @@ public class GPDClient {
         return responseGPD;
     }
     
-    private ResponseGPD mapClientError(ObjectMapper objectMapper, String rawBody, int status) {
+    private ResponseGPD mapClientError(String rawBody, int status) {
         ResponseGPD mapped;
         try {
-            mapped = objectMapper.readValue(rawBody, ResponseGPD.class);
+            mapped = ObjectMapperUtils.RESPONSE_GPD_READER.readValue(rawBody);
         } catch (Exception ignore) {
             mapped = null;
         }
@@ -183,8 +236,7 @@ public class GPDClient {
             return null;
         }
         try {
-            ObjectMapper om = new ObjectMapper().registerModule(new JavaTimeModule());
-            var node = om.readTree(rawBody);
+            var node = ObjectMapperUtils.TREE_READER.readTree(rawBody);
             if (node != null && node.hasNonNull("detail")) {
                 String detail = node.get("detail").asText();
                 if (isNotBlank(detail)) {
@@ -28,5 +28,7 @@ public abstract class DebtPositionMessage {
 
     public abstract RequestGPD getRequest(RequestTranslator requestTranslator, RequestGPD.Mode mode, Optional<String> optIUPD);
 
+    public abstract RequestGPD getRequest(RequestTranslator requestTranslator, List<String> filterByIUPD);
+
     public abstract QueueMessage getQueueMessage(MessageTranslator messageTranslator, List<String> filterByIUPD);
 }
@@ -30,6 +30,11 @@ public class DeleteMessage extends DebtPositionMessage {
         return requestTranslator.create(this, mode, optIUPD);
     }
 
+    @Override
+    public RequestGPD getRequest(RequestTranslator requestTranslator, List<String> filterByIUPD) {
+        return requestTranslator.create(this, filterByIUPD);
+    }
+
     @Override
     public QueueMessage getQueueMessage(MessageTranslator messageTranslator, List<String> filterByIUPD) {
         return messageTranslator.translate(this, filterByIUPD);
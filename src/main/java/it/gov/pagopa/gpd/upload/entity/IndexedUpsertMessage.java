@@ -0,0 +1,65 @@
+package it.gov.pagopa.gpd.upload.entity;
+
+import it.gov.pagopa.gpd.upload.model.CRUDOperation;
+import it.gov.pagopa.gpd.upload.model.enumeration.ServiceType;
+import it.gov.pagopa.gpd.upload.util.IupdIndex;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Upsert message whose payment positions are looked up by IUPD, whatever their representation
+ */
+@Getter
+@Setter
+public abstract class IndexedUpsertMessage<T> extends DebtPositionMessage {
+    private List<T> paymentPositions;
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private final Function<T, String> iupd;
+    // built on the first lookup: the one-by-one fallback looks up every IUPD of the message
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private volatile IupdIndex<T> index;
+
+    protected IndexedUpsertMessage(CRUDOperation crudOperation, String uploadKey, String organizationFiscalCode, String brokerCode, Integer retryCounter, ServiceType serviceType,
+                                   List<T> paymentPositions, Function<T, String> iupd) {
+        super(crudOperation, uploadKey, organizationFiscalCode, brokerCode, retryCounter, serviceType);
+        this.paymentPositions = paymentPositions;
+        this.iupd = iupd;
+    }
+
+    public void setPaymentPositions(List<T> paymentPositions) {
+        this.paymentPositions = paymentPositions;
+        this.index = null;
+    }
+
+    public List<T> getPaymentPositions(String IUPD) {
+        return getIndex().get(IUPD);
+    }
+
+    public List<T> getPaymentPositions(List<String> IUPDs) {
+        return getIndex().get(IUPDs);
+    }
+
+    // concurrent first lookups may build it twice, the result is the same
+    private IupdIndex<T> getIndex() {
+        IupdIndex<T> current = index;
+        if (current == null) {
+            current = new IupdIndex<>(paymentPositions, iupd);
+            index = current;
+        }
+        return current;
+    }
+
+    @Override
+    public List<String> getIUPDList() {
+        return paymentPositions.stream()
+                .map(iupd)
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,36 @@
+package it.gov.pagopa.gpd.upload.entity;
+
+import it.gov.pagopa.gpd.upload.model.QueueMessage;
+import it.gov.pagopa.gpd.upload.model.RequestGPD;
+import it.gov.pagopa.gpd.upload.model.pd.RawPaymentPosition;
+import it.gov.pagopa.gpd.upload.service.MessageTranslator;
+import it.gov.pagopa.gpd.upload.service.RequestTranslator;
+
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Upsert message whose payment positions are passed through to GPD as JSON fragments
+ */
+public class RawUpsertMessage extends IndexedUpsertMessage<RawPaymentPosition> {
+
+    public RawUpsertMessage(QueueMessage m) {
+        super(m.getCrudOperation(), m.getUploadKey(), m.getOrganizationFiscalCode(), m.getBrokerCode(), m.getRetryCounter(), m.getServiceType(),
+              m.getRawPaymentPositions(), RawPaymentPosition::getIupd);
+    }
+
+    @Override
+    public RequestGPD getRequest(RequestTranslator requestTranslator, RequestGPD.Mode mode, Optional<String> optIUPD) {
+        return requestTranslator.create(this, mode, optIUPD);
+    }
+
+    @Override
+    public RequestGPD getRequest(RequestTranslator requestTranslator, List<String> filterByIUPD) {
+        return requestTranslator.create(this, filterByIUPD);
+    }
+
+    @Override
+    public QueueMessage getQueueMessage(MessageTranslator messageTranslator, List<String> filterByIUPD) {
+        return messageTranslator.translate(this, filterByIUPD);
+    }
+}
@@ -0,0 +1,25 @@
+package it.gov.pagopa.gpd.upload.entity;
+
+import lombok.*;
+
+import java.util.ArrayList;
+
+/**
+ * Responses of one processed chunk, stored in the partition of the upload Status
+ */
+@Builder(toBuilder = true)
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@ToString
+public class StatusShard {
+    // discriminator of the documents sharing the Status container
+    public static final String TYPE = "shard";
+
+    public String id;
+    public String type;
+    public String uploadKey;
+    public String fiscalCode;
+    public ArrayList<ResponseEntry> responses;
+}
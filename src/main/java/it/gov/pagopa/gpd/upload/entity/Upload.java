@@ -15,6 +15,8 @@ import java.util.List;
 public class Upload {
     private int current;
     private int total;
+    // true while the input blob is still being read: the upload can't be completed by its chunks yet
+    private boolean ingesting;
     private ArrayList<ResponseEntry> responses;
     @JsonFormat(pattern="yyyy-MM-dd HH:mm:ss")
     private LocalDateTime start;
@@ -36,4 +38,13 @@ public class Upload {
         // If no match is found, add the new response entry to the list
         responses.add(responseEntry);
     }
+
+    // entries are appended by concurrent patches: those with the same status are merged when read
+    public ArrayList<ResponseEntry> mergedResponses() {
+        Upload merged = new Upload();
+        merged.responses = new ArrayList<>();
+        if (responses != null)
+            responses.forEach(entry -> merged.addResponse(entry.toBuilder().build()));
+        return merged.responses;
+    }
 }
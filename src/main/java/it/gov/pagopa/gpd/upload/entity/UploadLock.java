@@ -0,0 +1,24 @@
+package it.gov.pagopa.gpd.upload.entity;
+
+import lombok.*;
+
+/**
+ * Lease document of an upload in progress, stored in the partition of the upload Status
+ */
+@Builder(toBuilder = true)
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@ToString
+public class UploadLock {
+    // discriminator of the documents sharing the Status container
+    public static final String TYPE = "lock";
+
+    public String id;
+    public String type;
+    public String fiscalCode;
+    public String subject;
+    public long expiresAt; // epoch seconds
+    public long ttl;       // seconds, lets Cosmos remove abandoned locks when the container TTL is enabled
+}
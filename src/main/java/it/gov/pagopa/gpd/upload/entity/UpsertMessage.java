@@ -5,33 +5,25 @@ import it.gov.pagopa.gpd.upload.model.RequestGPD;
 import it.gov.pagopa.gpd.upload.model.pd.PaymentPosition;
 import it.gov.pagopa.gpd.upload.service.MessageTranslator;
 import it.gov.pagopa.gpd.upload.service.RequestTranslator;
-import lombok.Getter;
-import lombok.Setter;
 
 import java.util.List;
 import java.util.Optional;
-import java.util.stream.Collectors;
 
-@Getter
-@Setter
-public class UpsertMessage extends DebtPositionMessage {
-    private List<PaymentPosition> paymentPositions;
+public class UpsertMessage extends IndexedUpsertMessage<PaymentPosition> {
 
     public UpsertMessage(QueueMessage m) {
-        super(m.getCrudOperation(), m.getUploadKey(), m.getOrganizationFiscalCode(), m.getBrokerCode(), m.getRetryCounter(), m.getServiceType());
-        this.paymentPositions = m.getPaymentPositions();
+        super(m.getCrudOperation(), m.getUploadKey(), m.getOrganizationFiscalCode(), m.getBrokerCode(), m.getRetryCounter(), m.getServiceType(),
+              m.getPaymentPositions(), PaymentPosition::getIupd);
     }
 
     @Override
-    public List<String> getIUPDList() {
-        return paymentPositions.stream()
-                .map(PaymentPosition::getIupd)
-                .collect(Collectors.toList());
+    public RequestGPD getRequest(RequestTranslator requestTranslator, RequestGPD.Mode mode, Optional<String> optIUPD) {
+        return requestTranslator.create(this, mode, optIUPD);
     }
 
     @Override
-    public RequestGPD getRequest(RequestTranslator requestTranslator, RequestGPD.Mode mode, Optional<String> optIUPD) {
-        return requestTranslator.create(this, mode, optIUPD);
+    public RequestGPD getRequest(RequestTranslator requestTranslator, List<String> filterByIUPD) {
+        return requestTranslator.create(this, filterByIUPD);
     }
 
     @Override
@@ -1,7 +1,10 @@
 package it.gov.pagopa.gpd.upload.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import it.gov.pagopa.gpd.upload.model.enumeration.ServiceType;
 import it.gov.pagopa.gpd.upload.model.pd.PaymentPosition;
+import it.gov.pagopa.gpd.upload.model.pd.RawPaymentPosition;
 import lombok.*;
 
 import java.util.List;
@@ -20,4 +23,14 @@ public class QueueMessage {
     private List<PaymentPosition> paymentPositions;
     private List<String> paymentPositionIUPDs;
     private ServiceType serviceType;
+    // claim-check: the chunk is staged in this blob, the message only carries its reference and IUPD range
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String payloadBlob;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String firstIUPD;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String lastIUPD;
+    // raw mode: the positions read as JSON fragments by RawMessageReader, never serialized
+    @JsonIgnore
+    private List<RawPaymentPosition> rawPaymentPositions;
 }
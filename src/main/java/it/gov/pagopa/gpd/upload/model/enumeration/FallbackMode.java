@@ -0,0 +1,5 @@
+package it.gov.pagopa.gpd.upload.model.enumeration;
+
+public enum FallbackMode {
+    ONE_BY_ONE, BISECT
+}
@@ -0,0 +1,5 @@
+package it.gov.pagopa.gpd.upload.model.enumeration;
+
+public enum QueueCodec {
+    JSON, GZIP, SMILE, CBOR
+}
@@ -0,0 +1,5 @@
+package it.gov.pagopa.gpd.upload.model.enumeration;
+
+public enum ValidationEngine {
+    BEAN_VALIDATION, COMPILED
+}
@@ -0,0 +1,14 @@
+package it.gov.pagopa.gpd.upload.model.pd;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Payment position kept as the JSON fragment of the queue message, only its IUPD is read
+ */
+@Getter
+@AllArgsConstructor
+public class RawPaymentPosition {
+    private final String iupd;
+    private final String json;
+}
@@ -6,11 +6,27 @@ import com.azure.storage.blob.BlobContainerClient;
 import com.azure.storage.blob.BlobServiceClient;
 import com.azure.storage.blob.BlobServiceClientBuilder;
 import com.azure.storage.blob.models.BlobProperties;
+import com.azure.storage.blob.models.BlobRequestConditions;
 import com.azure.storage.blob.models.BlobStorageException;
+import com.azure.storage.blob.models.ParallelTransferOptions;
+import com.azure.storage.blob.options.BlobInputStreamOptions;
+import com.azure.storage.blob.options.BlockBlobOutputStreamOptions;
+import com.azure.storage.blob.specialized.BlockBlobClient;
+import it.gov.pagopa.gpd.upload.exception.AppException;
+import it.gov.pagopa.gpd.upload.model.QueueMessage;
+import it.gov.pagopa.gpd.upload.model.UploadReport;
 import it.gov.pagopa.gpd.upload.model.enumeration.ServiceType;
+import it.gov.pagopa.gpd.upload.util.HttpClientUtils;
+import it.gov.pagopa.gpd.upload.util.ObjectMapperUtils;
 import lombok.extern.slf4j.Slf4j;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -23,8 +39,12 @@ public class BlobRepository {
     private static final String REPORT_SUFFIX = "report";
     private static final String INPUT_DIRECTORY = "input";
     private static final String OUTPUT_DIRECTORY = "output";
+    private static final String STAGING_DIRECTORY = "staging";
     private static final String SERVICE_TYPE_METADATA = "serviceType";
-    private BlobServiceClient blobServiceClient;
+    private static final long REPORT_BLOCK_SIZE = 4L * 1024 * 1024;
+    private static final int REPORT_MAX_CONCURRENCY = 4;
+    private volatile BlobServiceClient blobServiceClient;
+    private final Map<String, BlobContainerClient> containers = new ConcurrentHashMap<>();
     private Logger logger;
 
     private static volatile BlobRepository instance;
@@ -44,59 +64,89 @@ public class BlobRepository {
     }
 
     public Map<String, Object> download(String broker, String fiscalCode, String filename) {
-        blobServiceClient = new BlobServiceClientBuilder()
-                                    .connectionString(connectionString)
-                                    .buildClient();
-        blobServiceClient.createBlobContainerIfNotExists(broker);
-        BlobContainerClient container = blobServiceClient.getBlobContainerClient(broker);
-
-        if(!container.exists())
-            logger.log(Level.INFO, () -> "container doesn't exist");
-
         String blobName = "/" + fiscalCode + "/" + INPUT_DIRECTORY + "/" + filename;
-        BlobClient blobClient = container.getBlobClient(blobName);
-        if(!blobClient.exists())
-            logger.log(Level.INFO, () -> "blob doesn't exist: " + blobName);
+        BlobClient blobClient = getContainer(broker).getBlobClient(blobName);
 
+        // properties only: no stream is opened before the blob is known to be read
         BlobProperties properties = blobClient.getProperties();
         ServiceType serviceType = ServiceType.valueOf(properties.getMetadata().getOrDefault(SERVICE_TYPE_KEY, ServiceType.GPD.name()));
 
-        return Map.of(BLOB_KEY, blobClient.downloadContent(), SERVICE_TYPE_KEY, serviceType);
+        // the content is read as a stream, so the blob is never materialized in memory:
+        // each read opens its own stream, on the version of the blob whose properties have been read
+        BlobInputStreamOptions options = new BlobInputStreamOptions()
+                                                 .setRequestConditions(new BlobRequestConditions().setIfMatch(properties.getETag()));
+        Supplier<InputStream> content = () -> blobClient.openInputStream(options);
+        return Map.of(BLOB_KEY, content, SERVICE_TYPE_KEY, serviceType);
     }
 
-    public boolean uploadReport(String data, String broker, String fiscalCode, String filename, ServiceType serviceType) {
+    // the report is serialized straight into a block blob stream, metadata included: no intermediate String, no second call
+    public boolean uploadReport(UploadReport report, String broker, String fiscalCode, String filename, ServiceType serviceType) {
         String blobPath = "/" + fiscalCode + "/" + OUTPUT_DIRECTORY + "/" + REPORT_SUFFIX + filename;
-        boolean uploadResponse = this.upload(data, broker, blobPath);
-        if(uploadResponse){
-            setServiceTypeMetadata(serviceType, broker, blobPath);
+        BlockBlobOutputStreamOptions options = new BlockBlobOutputStreamOptions()
+                                                       .setMetadata(Map.of(SERVICE_TYPE_METADATA, serviceType.name()))
+                                                       .setParallelTransferOptions(new ParallelTransferOptions()
+                                                                                           .setBlockSizeLong(REPORT_BLOCK_SIZE)
+                                                                                           .setMaxConcurrency(REPORT_MAX_CONCURRENCY))
+                                                       // the report is written once, as the former upload without overwrite
+                                                       .setRequestConditions(new BlobRequestConditions().setIfNoneMatch("*"));
+        BlockBlobClient blobClient = getContainer(broker).getBlobClient(blobPath).getBlockBlobClient();
+        try (OutputStream outputStream = blobClient.getBlobOutputStream(options)) {
+            ObjectMapperUtils.UPLOAD_REPORT_WRITER.writeValue(outputStream, report);
+            return true;
+        } catch (IOException | BlobStorageException e) {
+            logger.log(Level.SEVERE, () -> "Report upload exception " + e.getMessage());
+            return false;
         }
-        return uploadResponse;
     }
 
-    private boolean upload(String data, String container, String blobPath) {
+    /**
+     * Claim-check: stores the chunk next to the input directory, the blob is deleted once the chunk is processed
+     * @return the blob name to reference in the queue message
+     */
+    public String stagePayload(String broker, String fiscalCode, String uploadKey, QueueMessage payload) throws AppException {
+        String blobPath = "/" + fiscalCode + "/" + STAGING_DIRECTORY + "/" + uploadKey + "/" + UUID.randomUUID() + ".json";
         try {
-            blobServiceClient = new BlobServiceClientBuilder()
-                                        .connectionString(connectionString)
-                                        .buildClient();
-            blobServiceClient.createBlobContainerIfNotExists(container);
-            BlobContainerClient blobContainerClient = blobServiceClient.getBlobContainerClient(container);
+            getContainer(broker).getBlobClient(blobPath).upload(BinaryData.fromBytes(ObjectMapperUtils.QUEUE_MESSAGE_WRITER.writeValueAsBytes(payload)), false);
+            return blobPath;
+        } catch (IOException | BlobStorageException e) {
+            logger.log(Level.SEVERE, () -> "Payload staging exception " + e.getMessage());
+            throw new AppException("Error while staging payload for upload " + uploadKey + ": " + e.getMessage());
+        }
+    }
 
-            if (!blobContainerClient.exists())
-                logger.log(Level.SEVERE, () -> "container doesn't exist");
-            BlobClient blobClient = blobContainerClient.getBlobClient(blobPath);
-            blobClient.upload(BinaryData.fromString(data));
-            return true;
+    public InputStream openPayload(String broker, String blobPath) {
+        return getContainer(broker).getBlobClient(blobPath).openInputStream();
+    }
+
+    public void deletePayload(String broker, String blobPath) {
+        try {
+            getContainer(broker).getBlobClient(blobPath).deleteIfExists();
         } catch (BlobStorageException e) {
-            logger.log(Level.SEVERE, () -> "BlobStorageException " + e.getMessage());
-            return false;
+            // an orphan payload doesn't affect the upload
+            logger.log(Level.WARNING, () -> "Payload delete exception " + e.getMessage());
         }
     }
 
-    private void setServiceTypeMetadata(ServiceType serviceType, String container, String blobPath){
-        Map<String, String> metadata = Map.of(SERVICE_TYPE_METADATA, serviceType.name());
-        BlobContainerClient blobContainerClient = blobServiceClient.getBlobContainerClient(container);
-        blobContainerClient.getBlobClient(blobPath).setMetadata(metadata);
+    private BlobServiceClient getBlobServiceClient() {
+        if (blobServiceClient == null) {
+            synchronized (this) {
+                if (blobServiceClient == null) {
+                    blobServiceClient = new BlobServiceClientBuilder()
+                                                .connectionString(connectionString)
+                                                .httpClient(HttpClientUtils.getSharedClient())
+                                                .buildClient();
+                }
+            }
+        }
+        return blobServiceClient;
     }
-}
-
 
+    // the container is created once per broker and worker, then its client is reused
+    private BlobContainerClient getContainer(String broker) {
+        return containers.computeIfAbsent(broker, name -> {
+            BlobServiceClient serviceClient = getBlobServiceClient();
+            serviceClient.createBlobContainerIfNotExists(name);
+            return serviceClient.getBlobContainerClient(name);
+        });
+    }
+}
@@ -1,20 +1,34 @@
 package it.gov.pagopa.gpd.upload.repository;
 
 import com.azure.cosmos.*;
+import com.azure.cosmos.models.CosmosBatch;
+import com.azure.cosmos.models.CosmosBatchResponse;
 import com.azure.cosmos.models.CosmosItemRequestOptions;
 import com.azure.cosmos.models.CosmosItemResponse;
 import com.azure.cosmos.models.CosmosPatchOperations;
+import com.azure.cosmos.models.CosmosQueryRequestOptions;
 import com.azure.cosmos.models.PartitionKey;
+import com.azure.cosmos.models.SqlParameter;
+import com.azure.cosmos.models.SqlQuerySpec;
 import com.microsoft.azure.functions.HttpStatus;
+import it.gov.pagopa.gpd.upload.entity.ResponseEntry;
 import it.gov.pagopa.gpd.upload.entity.Status;
+import it.gov.pagopa.gpd.upload.entity.StatusShard;
 import it.gov.pagopa.gpd.upload.exception.AppException;
 import reactor.util.retry.Retry;
 import reactor.util.retry.RetryBackoffSpec;
 
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 
 public class StatusRepository {
     private static volatile StatusRepository instance;
@@ -25,6 +39,8 @@ public class StatusRepository {
     private CosmosContainer container;
     ThrottlingRetryOptions throttlingRetryOptions = new ThrottlingRetryOptions();
     private final Logger logger;
+    // limit of the operations of a transactional batch
+    private static final int MAX_BATCH_OPERATIONS = 100;
 
     public static StatusRepository getInstance(Logger logger) {
         if (instance == null) {
@@ -54,25 +70,24 @@ public class StatusRepository {
         container = cosmosClient.getDatabase(databaseName).getContainer(containerName);
     }
 
-    //  Read document by ID and Partition Key
-    public synchronized Status createIfNotExist(String invocationId, String statusId, String partitionKey, Status statusIfNotExist) throws AppException {
+    // Create the document, or read it if it already exists: no read-then-write window between concurrent invocations
+    public Status createIfNotExist(String invocationId, String statusId, String partitionKey, Status statusIfNotExist) throws AppException {
         try {
-            CosmosItemResponse<Status> response = container.readItem(statusId, new PartitionKey(partitionKey), Status.class);
-            logger.log(Level.INFO, () -> String.format("[id=%s][StatusRepository] Item with ID %s already exists. Skipping creation.", invocationId, statusId));
-            return response.getItem();
+            container.createItem(statusIfNotExist, new PartitionKey(partitionKey), new CosmosItemRequestOptions());
+            logger.log(Level.INFO, () -> String.format("[id=%s][StatusRepository] Item with ID %s doesn't exist. It has been created.", invocationId, statusId));
+            return statusIfNotExist;
         } catch (CosmosException ex) {
-            if (ex.getStatusCode() == HttpStatus.NOT_FOUND.value()) {
-                logger.log(Level.INFO, () -> String.format("[id=%s][StatusRepository] Item with ID %s doesn't exist. It will be created.", invocationId, statusId));
-                this.upsertStatus(invocationId, statusIfNotExist.id, statusIfNotExist);
-                return statusIfNotExist;
+            if (ex.getStatusCode() == HttpStatus.CONFLICT.value()) {
+                logger.log(Level.INFO, () -> String.format("[id=%s][StatusRepository] Item with ID %s already exists. Skipping creation.", invocationId, statusId));
+                return this.getStatus(invocationId, statusId, partitionKey);
             } else {
                 logger.log(Level.SEVERE, () -> String.format("[id=%s][StatusRepository] Error while create status item, code: %s", invocationId, ex.getStatusCode()));
-                throw new AppException("Error " + ex.getStatusCode() + " while reading Status item: " + statusId);
+                throw new AppException("Error " + ex.getStatusCode() + " while creating Status item: " + statusId);
             }
         }
     }
 
-    public synchronized Status getStatus(String invocationId, String id, String partitionKey) throws AppException {
+    public Status getStatus(String invocationId, String id, String partitionKey) throws AppException {
         try {
             CosmosItemResponse<Status> response = container.readItem(id, new PartitionKey(partitionKey), Status.class);
             logger.log(Level.INFO, () -> String.format("Read Status document with id %s response: %s", id, response.getStatusCode()));
@@ -88,7 +103,7 @@ public class StatusRepository {
         }
     }
 
-    public synchronized void upsertStatus(String invocationId, String id, Status status) throws AppException {
+    public void upsertStatus(String invocationId, String id, Status status) throws AppException {
         try {
             CosmosItemResponse<Status> response = container.upsertItem(status, new CosmosItemRequestOptions());
             if(response.getStatusCode() < 200 || response.getStatusCode() > 299) {
@@ -114,6 +129,127 @@ public class StatusRepository {
         return response.getStatusCode() == HttpStatus.OK.value();
     }
 
+    public void startIngestion(String invocationId, String id, String fiscalCode, int total) throws AppException {
+        CosmosPatchOperations operations = CosmosPatchOperations
+                .create()
+                .set("/upload/total", total)
+                .set("/upload/ingesting", true);
+        this.patch(invocationId, id, fiscalCode, operations);
+    }
+
+    public Status endIngestion(String invocationId, String id, String fiscalCode) throws AppException {
+        CosmosPatchOperations operations = CosmosPatchOperations
+                .create()
+                .set("/upload/ingesting", false);
+        return this.patch(invocationId, id, fiscalCode, operations);
+    }
+
+    // the responses of a chunk go to their own document, the Status only counts them: its size doesn't grow with the upload
+    public void appendResponses(String invocationId, String id, String fiscalCode, List<ResponseEntry> entries) throws AppException {
+        List<String> chunk = entries.stream().flatMap(entry -> entry.getRequestIDs().stream()).toList();
+        appendResponses(invocationId, id, fiscalCode, List.of(chunk), entries);
+    }
+
+    // a chunk is the set of IUPDs of a queue message: the responses of merged messages are split in one shard per message,
+    // so a message redelivered alone finds its shard. Shards and counter are written in one transactional batch (same partition)
+    public void appendResponses(String invocationId, String id, String fiscalCode, List<List<String>> chunks, List<ResponseEntry> entries) throws AppException {
+        List<StatusShard> shards = new ArrayList<>();
+        for (List<String> chunk : chunks) {
+            Set<String> IUPDs = new HashSet<>(chunk);
+            ArrayList<ResponseEntry> responses = new ArrayList<>();
+            for (ResponseEntry entry : entries) {
+                List<String> requestIDs = entry.getRequestIDs().stream().filter(IUPDs::contains).toList();
+                if (!requestIDs.isEmpty())
+                    responses.add(entry.toBuilder().requestIDs(requestIDs).build());
+            }
+            if (responses.isEmpty())
+                continue; // nothing processed for the chunk: nothing to record or count
+            shards.add(StatusShard.builder()
+                               .id(shardId(id, chunk))
+                               .type(StatusShard.TYPE)
+                               .uploadKey(id)
+                               .fiscalCode(fiscalCode)
+                               .responses(responses)
+                               .build());
+        }
+        if (shards.isEmpty())
+            return;
+        if (shards.size() < MAX_BATCH_OPERATIONS && writeShards(invocationId, id, fiscalCode, shards))
+            return;
+        if (shards.size() > 1) {
+            // some messages already recorded (redelivered alone) or too many for one batch: each shard with its own counter
+            for (StatusShard shard : shards)
+                writeShards(invocationId, id, fiscalCode, List.of(shard));
+        }
+    }
+
+    // false if a shard already exists: nothing is written
+    private boolean writeShards(String invocationId, String id, String fiscalCode, List<StatusShard> shards) throws AppException {
+        CosmosBatch batch = CosmosBatch.createCosmosBatch(new PartitionKey(fiscalCode));
+        int processed = 0;
+        for (StatusShard shard : shards) {
+            batch.createItemOperation(shard);
+            processed += shard.responses.stream().mapToInt(entry -> entry.getRequestIDs().size()).sum();
+        }
+        batch.patchItemOperation(id, CosmosPatchOperations.create().increment("/upload/current", processed));
+
+        CosmosBatchResponse response;
+        try {
+            response = container.executeCosmosBatch(batch);
+        } catch (CosmosException e) {
+            logger.log(Level.SEVERE, () -> String.format("[id=%s][StatusRepository] Error while append status shard, code: %s, message: %s", invocationId, e.getStatusCode(), e.getMessage()));
+            throw new AppException("Error while append Status shard of " + id);
+        }
+        if (response.isSuccessStatusCode())
+            return true;
+        if (response.getResults().stream().anyMatch(result -> result.getStatusCode() == HttpStatus.CONFLICT.value())) {
+            // redelivered chunk: its responses are already recorded and counted
+            logger.log(Level.INFO, () -> String.format("[id=%s][StatusRepository] Status shard of %s already exists. Skipping update of %s shards.", invocationId, id, shards.size()));
+            return false;
+        }
+        logger.log(Level.SEVERE, () -> String.format("[id=%s][StatusRepository] Error while append status shard, code: %s, message: %s", invocationId, response.getStatusCode(), response.getErrorMessage()));
+        throw new AppException("Error " + response.getStatusCode() + " while append Status shard of " + id);
+    }
+
+    public List<ResponseEntry> getResponses(String invocationId, String id, String fiscalCode) throws AppException {
+        // the Status and the upload locks share the partition: only the shards are read
+        SqlQuerySpec query = new SqlQuerySpec("SELECT * FROM c WHERE c.type = @type AND c.uploadKey = @uploadKey",
+                new SqlParameter("@type", StatusShard.TYPE), new SqlParameter("@uploadKey", id));
+        CosmosQueryRequestOptions options = new CosmosQueryRequestOptions().setPartitionKey(new PartitionKey(fiscalCode));
+        try {
+            List<ResponseEntry> responses = new ArrayList<>();
+            for (StatusShard shard : container.queryItems(query, options, StatusShard.class)) {
+                if (shard.responses != null)
+                    responses.addAll(shard.responses);
+            }
+            return responses;
+        } catch (CosmosException e) {
+            logger.log(Level.SEVERE, () -> String.format("[id=%s][StatusRepository] Error while reading status shards, code: %s, message: %s", invocationId, e.getStatusCode(), e.getMessage()));
+            throw new AppException("Error while reading Status shards of " + id);
+        }
+    }
+
+    // same chunk, same shard: the id depends only on the IUPDs of the chunk, not on the outcome of its processing
+    private static String shardId(String id, List<String> chunk) {
+        String content = chunk.stream().sorted().collect(Collectors.joining(","));
+        return id + "_" + UUID.nameUUIDFromBytes(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private Status patch(String invocationId, String id, String fiscalCode, CosmosPatchOperations operations) throws AppException {
+        try {
+            CosmosItemResponse<Status> response = container.patchItem(id, new PartitionKey(fiscalCode), operations, Status.class);
+            return response.getItem();
+        } catch (CosmosException e) {
+            logger.log(Level.SEVERE, () -> String.format("[id=%s][StatusRepository] Error while patch status item, code: %s, message: %s", invocationId, e.getStatusCode(), e.getMessage()));
+            throw new AppException("Error while patch Status item " + id);
+        }
+    }
+
+    // the upload locks live in the same container, next to the Status they protect
+    CosmosContainer getContainer() {
+        return container;
+    }
+
     private static RetryBackoffSpec getRetryPolicy() {
         // Customize the retry policy for handling 429 status codes
         return Retry.backoff(5, Duration.ofSeconds(1))
@@ -0,0 +1,129 @@
+package it.gov.pagopa.gpd.upload.repository;
+
+import com.azure.cosmos.CosmosContainer;
+import com.azure.cosmos.CosmosException;
+import com.azure.cosmos.models.CosmosItemRequestOptions;
+import com.azure.cosmos.models.CosmosItemResponse;
+import com.azure.cosmos.models.CosmosPatchOperations;
+import com.azure.cosmos.models.PartitionKey;
+import com.microsoft.azure.functions.HttpStatus;
+import it.gov.pagopa.gpd.upload.entity.UploadLock;
+import it.gov.pagopa.gpd.upload.util.IdempotencyUploadTracker;
+import it.gov.pagopa.gpd.upload.util.UploadLockBackend;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Upload lock shared by all the instances: a lease document per subject in the Status container.
+ * The document is created only if missing, so a single instance wins the race; an expired lease
+ * (e.g. instance crashed) is taken over with an ETag-conditioned replace.
+ */
+public class UploadLockRepository implements UploadLockBackend {
+    private static volatile UploadLockRepository instance;
+    private static final String SUBJECT_SEPARATOR = "/";
+    private static final int FISCAL_CODE_SEGMENT = 4; // /containers/{broker}/blobs/{fiscalCode}/{key}
+    private final Logger logger;
+    private final CosmosContainer container;
+
+    public static UploadLockRepository getInstance(Logger logger) {
+        if (instance == null) {
+            synchronized (UploadLockRepository.class) {
+                if (instance == null) {
+                    instance = new UploadLockRepository(logger, StatusRepository.getInstance(logger).getContainer());
+                }
+            }
+        }
+        return instance;
+    }
+
+    UploadLockRepository(Logger logger, CosmosContainer container) {
+        this.logger = logger;
+        this.container = container;
+    }
+
+    @Override
+    public boolean tryLock(String key) {
+        UploadLock lock = newLock(key);
+        PartitionKey partitionKey = new PartitionKey(lock.getFiscalCode());
+        try {
+            container.createItem(lock, partitionKey, new CosmosItemRequestOptions());
+            return true;
+        } catch (CosmosException e) {
+            if (e.getStatusCode() != HttpStatus.CONFLICT.value())
+                throw lockException("create", key, e);
+        }
+
+        // already held: take it over only if the lease is expired
+        try {
+            CosmosItemResponse<UploadLock> current = container.readItem(lock.getId(), partitionKey, UploadLock.class);
+            if (current.getItem().getExpiresAt() > Instant.now().getEpochSecond())
+                return false;
+            container.replaceItem(lock, lock.getId(), partitionKey, new CosmosItemRequestOptions().setIfMatchETag(current.getETag()));
+            logger.log(Level.WARNING, () -> String.format("[UploadLockRepository] Expired lock taken over for subject %s", key));
+            return true;
+        } catch (CosmosException e) {
+            if (e.getStatusCode() == HttpStatus.PRECONDITION_FAILED.value())
+                return false; // another instance took it over first
+            if (e.getStatusCode() == HttpStatus.NOT_FOUND.value())
+                return tryLock(key); // released in the meantime
+            throw lockException("take over", key, e);
+        }
+    }
+
+    @Override
+    public void unlock(String key) {
+        UploadLock lock = newLock(key);
+        try {
+            container.deleteItem(lock.getId(), new PartitionKey(lock.getFiscalCode()), new CosmosItemRequestOptions());
+        } catch (CosmosException e) {
+            if (e.getStatusCode() != HttpStatus.NOT_FOUND.value())
+                logger.log(Level.SEVERE, () -> String.format("[UploadLockRepository] Error while releasing lock for subject %s, code: %s", key, e.getStatusCode()));
+        }
+    }
+
+    @Override
+    public void renew(String key) {
+        UploadLock lock = newLock(key);
+        CosmosPatchOperations operations = CosmosPatchOperations
+                .create()
+                .set("/expiresAt", lock.getExpiresAt())
+                .set("/ttl", lock.getTtl());
+        try {
+            container.patchItem(lock.getId(), new PartitionKey(lock.getFiscalCode()), operations, UploadLock.class);
+        } catch (CosmosException e) {
+            if (e.getStatusCode() == HttpStatus.NOT_FOUND.value()) {
+                // released by the completion of the upload: a late chunk has nothing to renew
+                logger.log(Level.FINE, () -> String.format("[UploadLockRepository] Lock already released for subject %s", key));
+                return;
+            }
+            // the lease is still valid until it expires, the next renewal may succeed
+            logger.log(Level.WARNING, () -> String.format("[UploadLockRepository] Error while renewing lock for subject %s, code: %s", key, e.getStatusCode()));
+        }
+    }
+
+    // the partition is the fiscal code of the original subject, as in the Status; the id is case-insensitive
+    static UploadLock newLock(String subject) {
+        String[] segments = subject.split(SUBJECT_SEPARATOR);
+        String fiscalCode = segments.length > FISCAL_CODE_SEGMENT ? segments[FISCAL_CODE_SEGMENT] : subject;
+        String key = IdempotencyUploadTracker.normalize(subject);
+        long ttl = IdempotencyUploadTracker.TIMEOUT_SECONDS;
+        return UploadLock.builder()
+                       .id("lock_" + UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8)))
+                       .type(UploadLock.TYPE)
+                       .fiscalCode(fiscalCode)
+                       .subject(key)
+                       .expiresAt(Instant.now().getEpochSecond() + ttl)
+                       .ttl(ttl)
+                       .build();
+    }
+
+    // the message goes back to the queue and is retried, rather than being processed without a lock
+    private IllegalStateException lockException(String action, String key, CosmosException e) {
+        logger.log(Level.SEVERE, () -> String.format("[UploadLockRepository] Error while trying to %s lock for subject %s, code: %s", action, key, e.getStatusCode()));
+        return new IllegalStateException("Error " + e.getStatusCode() + " while trying to " + action + " lock for subject " + key, e);
+    }
+}
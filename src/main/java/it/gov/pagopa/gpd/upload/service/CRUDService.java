@@ -1,18 +1,23 @@
 package it.gov.pagopa.gpd.upload.service;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import com.microsoft.azure.functions.ExecutionContext;
 import it.gov.pagopa.gpd.upload.entity.DebtPositionMessage;
 import it.gov.pagopa.gpd.upload.model.QueueMessage;
 import it.gov.pagopa.gpd.upload.exception.AppException;
 import it.gov.pagopa.gpd.upload.model.*;
+import it.gov.pagopa.gpd.upload.model.enumeration.FallbackMode;
 
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -23,25 +28,38 @@ public class CRUDService {
             System.getenv("MAX_RETRY") != null ? Integer.parseInt(System.getenv("MAX_RETRY")) : 2;
     private static final Integer RETRY_DELAY =
             System.getenv("RETRY_DELAY_IN_SECONDS") != null ? Integer.parseInt(System.getenv("RETRY_DELAY_IN_SECONDS")) : 300;
+    private static final Integer FALLBACK_CONCURRENCY =
+            System.getenv("FALLBACK_CONCURRENCY") != null ? Integer.parseInt(System.getenv("FALLBACK_CONCURRENCY")) : 8;
+    private static final FallbackMode FALLBACK_MODE =
+            System.getenv("FALLBACK_MODE") != null ? FallbackMode.valueOf(System.getenv("FALLBACK_MODE")) : FallbackMode.ONE_BY_ONE;
     private static final String LOG_ID = "[id=%s][upload=%s][CrudService] ";
+    // shared by the invocations of the worker, the concurrency of each invocation is bounded by FALLBACK_CONCURRENCY
+    private static final ExecutorService FALLBACK_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "gpd-fallback");
+        thread.setDaemon(true);
+        return thread;
+    });
 
-    private final ObjectMapper om;
     private final DebtPositionMessage debtPositionMessage;
     private final Function<RequestGPD, ResponseGPD> method;
     private final StatusService statusService;
     private final ExecutionContext ctx;
+    private final FallbackMode fallbackMode;
     private Logger logger;
     private String id;
 
     public CRUDService(ExecutionContext context, Function<RequestGPD, ResponseGPD> method, DebtPositionMessage message, StatusService statusService) {
+        this(context, method, message, statusService, FALLBACK_MODE);
+    }
+
+    public CRUDService(ExecutionContext context, Function<RequestGPD, ResponseGPD> method, DebtPositionMessage message, StatusService statusService, FallbackMode fallbackMode) {
         this.debtPositionMessage = message;
         this.method = method;
         this.ctx = context;
         this.statusService = statusService;
+        this.fallbackMode = fallbackMode;
         this.logger = ctx.getLogger();
         this.id = ctx.getInvocationId();
-        om = new ObjectMapper();
-        om.registerModule(new JavaTimeModule());
     }
 
     private ResponseGPD applyRequest(RequestGPD requestGPD) {
@@ -51,6 +69,13 @@ public class CRUDService {
 
     // constraint: paymentPositions size less than max bulk item per call -> compliant by design(max queue message = 64KB = ~30 PaymentPosition)
     public void processRequestInBulk() throws AppException, JsonProcessingException {
+        processRequestInBulk(List.of(debtPositionMessage.getIUPDList()));
+    }
+
+    /**
+     * @param chunks IUPDs of the queue messages merged in this request, their responses are recorded apart
+     */
+    public void processRequestInBulk(List<List<String>> chunks) throws AppException, JsonProcessingException {
         String uploadKey = debtPositionMessage.getUploadKey();
         String orgFiscalCode = debtPositionMessage.getOrganizationFiscalCode();
 
@@ -61,25 +86,22 @@ public class CRUDService {
         ResponseGPD response = applyRequest(requestGPD);
 
         if(!response.is2xxSuccessful()) {
-            // if BULK creation wasn't successful, switch to single debt position creation
+            // if BULK creation wasn't successful, switch to single debt position creation (or to smaller bulks if bisecting)
             Map<String, ResponseGPD> responseByIUPD = processRequestOneByOne(IUPDList);
             logger.log(Level.INFO, () -> String.format(LOG_ID + "Call Status update for %s IUPDs", id, uploadKey,responseByIUPD.keySet().size()));
-            statusService.appendResponses(id, orgFiscalCode, uploadKey, responseByIUPD);
+            statusService.appendResponses(id, orgFiscalCode, uploadKey, chunks, responseByIUPD);
         } else {
             // if BULK creation was successful
-            statusService.appendResponse(id, orgFiscalCode, uploadKey, IUPDList, response);
+            statusService.appendResponse(id, orgFiscalCode, uploadKey, chunks, response);
         }
     }
 
-    private Map<String, ResponseGPD> processRequestOneByOne(List<String> IUPDList) throws JsonProcessingException {
-        logger.log(Level.INFO, () -> String.format(LOG_ID + "Process request one-by-one", id, debtPositionMessage.getUploadKey()));
-        Map<String, ResponseGPD> responseByIUPD = new HashMap<>();
-
-        for(String IUPD: IUPDList) {
-            RequestGPD requestGPD = debtPositionMessage.getRequest(RequestTranslator.getInstance(), RequestGPD.Mode.SINGLE, Optional.of(IUPD));
-            ResponseGPD response = applyRequest(requestGPD);
-            responseByIUPD.put(IUPD, response);
-        }
+    private Map<String, ResponseGPD> processRequestOneByOne(List<String> IUPDList) throws JsonProcessingException, AppException {
+        logger.log(Level.INFO, () -> String.format(LOG_ID + "Process request with fallback %s", id, debtPositionMessage.getUploadKey(), fallbackMode));
+        Map<String, ResponseGPD> responseByIUPD = switch (fallbackMode) {
+            case ONE_BY_ONE -> applyRequestOneByOne(IUPDList);
+            case BISECT -> applyRequestBisecting(IUPDList);
+        };
 
         // Selecting responses where retry == true
         Map<String, ResponseGPD> retryResponses = responseByIUPD.entrySet().stream()
@@ -95,12 +117,72 @@ public class CRUDService {
         return responseByIUPD;
     }
 
-    public boolean retry(Map<String, ResponseGPD> retryResponse) throws JsonProcessingException {
+    private ResponseGPD applySingleRequest(String IUPD) {
+        RequestGPD requestGPD = debtPositionMessage.getRequest(RequestTranslator.getInstance(), RequestGPD.Mode.SINGLE, Optional.of(IUPD));
+        return applyRequest(requestGPD);
+    }
+
+    // single requests run concurrently, at most FALLBACK_CONCURRENCY at a time for this invocation
+    private Map<String, ResponseGPD> applyRequestOneByOne(List<String> IUPDList) {
+        Map<String, ResponseGPD> responseByIUPD = new HashMap<>();
+        if (FALLBACK_CONCURRENCY <= 1 || IUPDList.size() <= 1) {
+            for (String IUPD : IUPDList)
+                responseByIUPD.put(IUPD, applySingleRequest(IUPD));
+            return responseByIUPD;
+        }
+
+        Semaphore permits = new Semaphore(FALLBACK_CONCURRENCY);
+        Map<String, CompletableFuture<ResponseGPD>> futureByIUPD = new LinkedHashMap<>();
+        try {
+            for (String IUPD : IUPDList) {
+                permits.acquire();
+                futureByIUPD.put(IUPD, CompletableFuture.supplyAsync(() -> applySingleRequest(IUPD), FALLBACK_EXECUTOR)
+                                               .whenComplete((response, e) -> permits.release()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            futureByIUPD.values().forEach(future -> future.cancel(true));
+            throw new IllegalStateException("Interrupted while calling GPD one-by-one", e);
+        }
+
+        try {
+            futureByIUPD.forEach((IUPD, future) -> responseByIUPD.put(IUPD, future.join()));
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException cause ? cause : e;
+        }
+        return responseByIUPD;
+    }
+
+    // the whole list already failed in bulk: each half is retried in bulk, recursing on the failing halves
+    // until the bad positions are isolated and sent as single requests
+    private Map<String, ResponseGPD> applyRequestBisecting(List<String> IUPDList) {
+        Map<String, ResponseGPD> responseByIUPD = new HashMap<>();
+        bisect(IUPDList, responseByIUPD);
+        return responseByIUPD;
+    }
+
+    private void bisect(List<String> IUPDList, Map<String, ResponseGPD> responseByIUPD) {
+        if (IUPDList.size() == 1) {
+            responseByIUPD.put(IUPDList.get(0), applySingleRequest(IUPDList.get(0)));
+            return;
+        }
+        int middle = IUPDList.size() / 2;
+        for (List<String> half : List.of(IUPDList.subList(0, middle), IUPDList.subList(middle, IUPDList.size()))) {
+            ResponseGPD response = half.size() == 1 ? null : applyRequest(debtPositionMessage.getRequest(RequestTranslator.getInstance(), half));
+            if (response != null && response.is2xxSuccessful())
+                half.forEach(IUPD -> responseByIUPD.put(IUPD, response));
+            else
+                bisect(half, responseByIUPD);
+        }
+    }
+
+    public boolean retry(Map<String, ResponseGPD> retryResponse) throws JsonProcessingException, AppException {
         debtPositionMessage.setRetryCounter(debtPositionMessage.getRetryCounter()+1);
         List<String> retryIUPD = retryResponse.keySet().stream().toList();
         QueueMessage queueMessage = debtPositionMessage.getQueueMessage(MessageTranslator.getInstance(), retryIUPD);
 
         logger.log(Level.INFO, () -> String.format(LOG_ID + "Retry message %s", id, debtPositionMessage.getUploadKey(), queueMessage.getUploadKey()));
-        return QueueService.getInstance(logger).enqueue(id, om.writeValueAsString(queueMessage), RETRY_DELAY);
+        QueueService queueService = QueueService.getInstance(logger);
+        return queueService.enqueue(id, queueService.toQueueMessage(queueMessage), RETRY_DELAY);
     }
 }
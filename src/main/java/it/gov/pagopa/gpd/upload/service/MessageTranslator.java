@@ -1,9 +1,15 @@
 package it.gov.pagopa.gpd.upload.service;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
 import it.gov.pagopa.gpd.upload.entity.DeleteMessage;
+import it.gov.pagopa.gpd.upload.entity.RawUpsertMessage;
 import it.gov.pagopa.gpd.upload.entity.UpsertMessage;
 import it.gov.pagopa.gpd.upload.model.QueueMessage;
+import it.gov.pagopa.gpd.upload.model.pd.PaymentPosition;
+import it.gov.pagopa.gpd.upload.model.pd.RawPaymentPosition;
+import it.gov.pagopa.gpd.upload.util.ObjectMapperUtils;
 
+import java.util.ArrayList;
 import java.util.List;
 
 public class MessageTranslator {
@@ -26,8 +32,25 @@ public class MessageTranslator {
                        .organizationFiscalCode(upsertMessage.getOrganizationFiscalCode())
                        .brokerCode(upsertMessage.getBrokerCode())
                        .retryCounter(upsertMessage.getRetryCounter())
-                       .paymentPositions(upsertMessage.getPaymentPositions().stream().
-                                                 filter(pp -> filterByIUPD.contains(pp.getIupd())).toList()).build();
+                       .paymentPositions(upsertMessage.getPaymentPositions(filterByIUPD)).build();
+    }
+
+    // only the positions to retry are bound, to be enqueued again
+    public QueueMessage translate(RawUpsertMessage upsertMessage, List<String> filterByIUPD) {
+        List<PaymentPosition> paymentPositions = new ArrayList<>();
+        try {
+            for (RawPaymentPosition raw : upsertMessage.getPaymentPositions(filterByIUPD))
+                paymentPositions.add(ObjectMapperUtils.PAYMENT_POSITION_READER.readValue(raw.getJson()));
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException("An error occurred during the retry message generation from raw payment positions");
+        }
+        return QueueMessage.builder()
+                       .crudOperation(upsertMessage.getCrudOperation())
+                       .uploadKey(upsertMessage.getUploadKey())
+                       .organizationFiscalCode(upsertMessage.getOrganizationFiscalCode())
+                       .brokerCode(upsertMessage.getBrokerCode())
+                       .retryCounter(upsertMessage.getRetryCounter())
+                       .paymentPositions(paymentPositions).build();
     }
 
     public QueueMessage translate(DeleteMessage upsertMessage, List<String> filterByIUPD) {
@@ -1,64 +1,160 @@
 package it.gov.pagopa.gpd.upload.service;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.microsoft.azure.functions.ExecutionContext;
-import com.microsoft.azure.storage.CloudStorageAccount;
-import com.microsoft.azure.storage.Constants;
-import com.microsoft.azure.storage.StorageException;
-import com.microsoft.azure.storage.queue.CloudQueue;
-import com.microsoft.azure.storage.queue.CloudQueueMessage;
+import com.azure.core.util.BinaryData;
+import com.azure.storage.queue.QueueAsyncClient;
+import com.azure.storage.queue.QueueClientBuilder;
+import com.azure.storage.queue.QueueMessageEncoding;
+import it.gov.pagopa.gpd.upload.exception.AppException;
 import it.gov.pagopa.gpd.upload.model.QueueMessage;
 import it.gov.pagopa.gpd.upload.model.CRUDOperation;
+import it.gov.pagopa.gpd.upload.model.enumeration.QueueCodec;
 import it.gov.pagopa.gpd.upload.model.enumeration.ServiceType;
 import it.gov.pagopa.gpd.upload.model.pd.PaymentPosition;
+import it.gov.pagopa.gpd.upload.repository.BlobRepository;
+import it.gov.pagopa.gpd.upload.util.HttpClientUtils;
+import it.gov.pagopa.gpd.upload.util.ObjectMapperUtils;
+import it.gov.pagopa.gpd.upload.util.QueueMessageCodec;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
-import java.net.URISyntaxException;
-import java.security.InvalidKeyException;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class QueueService {
-    private static QueueService instance;
+    private static volatile QueueService instance;
     private static final String GPD_SA_CONNECTION_STRING = System.getenv("GPD_SA_CONNECTION_STRING");
     private static final String VALID_POSITIONS_QUEUE =
             System.getenv("VALID_POSITIONS_QUEUE") != null ? System.getenv("VALID_POSITIONS_QUEUE") : "VALID_POSITIONS_QUEUE";
-    public static final Integer CHUNK_SIZE = System.getenv("CHUNK_SIZE") != null ? Integer.parseInt(System.getenv("CHUNK_SIZE")) : 20;
-    private CloudQueue cloudQueue;
+    // queue of the blob created events, an event can be put back to be handled later
+    private static final String BLOB_EVENTS_QUEUE =
+            System.getenv("BLOB_EVENTS_QUEUE") != null ? System.getenv("BLOB_EVENTS_QUEUE") : "BLOB_EVENTS_QUEUE";
+    // a message is processed with one GPD bulk request: messages are packed by size, up to this number of positions
+    public static final Integer MAX_POSITIONS = System.getenv("GPD_BULK_MAX_POSITIONS") != null ? Integer.parseInt(System.getenv("GPD_BULK_MAX_POSITIONS")) : 100;
+    // claim-check: chunks are staged in blob storage and the queue message only carries their reference
+    public static final boolean CLAIM_CHECK_ENABLED = System.getenv("CLAIM_CHECK_ENABLED") != null && Boolean.parseBoolean(System.getenv("CLAIM_CHECK_ENABLED"));
+    public static final Integer CLAIM_CHECK_CHUNK_SIZE = System.getenv("CLAIM_CHECK_CHUNK_SIZE") != null ? Integer.parseInt(System.getenv("CLAIM_CHECK_CHUNK_SIZE")) : 500;
+    // max number of messages of an upload being sent at the same time
+    public static final Integer QUEUE_CONCURRENCY = System.getenv("QUEUE_CONCURRENCY") != null ? Integer.parseInt(System.getenv("QUEUE_CONCURRENCY")) : 16;
+    // 64 KB is the max size for the queue message
+    private static final Integer MAX_MESSAGE_SIZE = System.getenv("MAX_MESSAGE_SIZE") != null ? Integer.parseInt(System.getenv("MAX_MESSAGE_SIZE")) : 64 * 1024;
+    private static final String POSITIONS_FIELD = "\"paymentPositions\":[]";
+    // messages are base64-encoded, as the legacy client did and as the queue triggers expect: the encoding of the triggers
+    // is set for the whole function app (host.json), and the blob created events are written base64-encoded by Event Grid.
+    // The compact codecs are sent as binary, so their payload is encoded only once
+    private static final QueueMessageEncoding MESSAGE_ENCODING = QueueMessageEncoding.BASE64;
+    private QueueAsyncClient queueClient;
+    private QueueAsyncClient eventsClient;
+    private final QueueCodec codec;
     private Logger logger;
 
     public QueueService(Logger logger) {
+        this.logger = logger;
+        this.codec = QueueMessageCodec.CODEC;
         try {
-            this.logger = logger;
-            cloudQueue = CloudStorageAccount.parse(GPD_SA_CONNECTION_STRING).createCloudQueueClient()
-                            .getQueueReference(VALID_POSITIONS_QUEUE);
-        } catch (URISyntaxException | StorageException | InvalidKeyException e) {
+            queueClient = buildClient(VALID_POSITIONS_QUEUE);
+            eventsClient = buildClient(BLOB_EVENTS_QUEUE);
+        } catch (RuntimeException e) {
             logger.log(Level.SEVERE, () -> String.format("[QueueService] Processing function exception: %s, caused by: %s", e.getMessage(), e.getCause()));
         }
     }
 
-    public QueueService(Logger logger, CloudQueue cloudQueue) {
+    public QueueService(Logger logger, QueueAsyncClient queueClient) {
+        this(logger, queueClient, QueueMessageCodec.CODEC);
+    }
+
+    public QueueService(Logger logger, QueueAsyncClient queueClient, QueueCodec codec) {
         this.logger = logger;
-        this.cloudQueue = cloudQueue;
+        this.queueClient = queueClient;
+        this.codec = codec;
     }
 
     public static QueueService getInstance(Logger logger) {
         if (instance == null) {
-            instance = new QueueService(logger);
+            synchronized (QueueService.class) {
+                if (instance == null) {
+                    instance = new QueueService(logger);
+                }
+            }
         }
         return instance;
     }
 
-    public boolean enqueue(String invocationId, String message, int initialVisibilityDelayInSeconds) {
+    private static QueueAsyncClient buildClient(String queueName) {
+        return new QueueClientBuilder()
+                       .connectionString(GPD_SA_CONNECTION_STRING)
+                       .queueName(queueName)
+                       .messageEncoding(MESSAGE_ENCODING)
+                       .httpClient(HttpClientUtils.getSharedClient())
+                       .buildAsyncClient();
+    }
+
+    public boolean enqueue(String invocationId, byte[] message, int initialVisibilityDelayInSeconds) {
+        try {
+            enqueueAsync(invocationId, message, initialVisibilityDelayInSeconds).join();
+            return true;
+        } catch (CompletionException e) {
+            return false; // already logged
+        }
+    }
+
+    /**
+     * Sends the message without blocking: the future fails with an AppException if the message is not added to the queue
+     */
+    public CompletableFuture<Void> enqueueAsync(String invocationId, byte[] message, int initialVisibilityDelayInSeconds) {
+        return send(queueClient, VALID_POSITIONS_QUEUE, invocationId, BinaryData.fromBytes(message), initialVisibilityDelayInSeconds);
+    }
+
+    /**
+     * Puts a blob created event back to its queue, visible after the delay
+     * @return false if the event has not been added to the queue
+     */
+    public boolean requeueEvent(String invocationId, String event, int initialVisibilityDelayInSeconds) {
         try {
-            logger.log(Level.INFO, () -> String.format("[id=%s][QueueService] Add message of length %s to queue %s", invocationId, message.length(), VALID_POSITIONS_QUEUE));
-            CloudQueueMessage cloudQueueMessage = new CloudQueueMessage(message);
-            // timeToLiveInSeconds = 0 is default -> 7 days
-            cloudQueue.addMessage(cloudQueueMessage, 0, initialVisibilityDelayInSeconds, null, null);
-        } catch (StorageException e) {
-            logger.log(Level.SEVERE, () -> String.format("[id=%s][QueueService] Processing function exception: %s, caused by: %s", invocationId, e.getMessage(), e.getCause()));
+            send(eventsClient, BLOB_EVENTS_QUEUE, invocationId, BinaryData.fromString(event), initialVisibilityDelayInSeconds).join();
+            return true;
+        } catch (CompletionException e) {
+            return false; // already logged
         }
-        return true;
+    }
+
+    private CompletableFuture<Void> send(QueueAsyncClient client, String queueName, String invocationId, BinaryData message, int initialVisibilityDelayInSeconds) {
+        logger.log(Level.INFO, () -> String.format("[id=%s][QueueService] Add message of length %s to queue %s", invocationId, message.getLength(), queueName));
+        if (client == null)
+            return CompletableFuture.failedFuture(new AppException("Queue client not available"));
+        // null time to live is default -> 7 days
+        return client.sendMessageWithResponse(message, Duration.ofSeconds(initialVisibilityDelayInSeconds), null)
+                       .toFuture()
+                       .handle((response, e) -> {
+                           if (e != null) {
+                               logger.log(Level.SEVERE, () -> String.format("[id=%s][QueueService] Processing function exception: %s, caused by: %s", invocationId, e.getMessage(), e.getCause()));
+                               throw new CompletionException(new AppException("Error while adding message to queue " + queueName + ": " + e.getMessage()));
+                           }
+                           return null;
+                       });
+    }
+
+    /**
+     * Sends the messages with at most QUEUE_CONCURRENCY of them in flight
+     * @return false if any message has not been added to the queue
+     */
+    public boolean enqueueAll(String invocationId, List<byte[]> messages, int initialVisibilityDelayInSeconds) {
+        Throwable failure = Flux.fromIterable(messages)
+                                    .flatMap(message -> Mono.fromFuture(() -> enqueueAsync(invocationId, message, initialVisibilityDelayInSeconds)), QUEUE_CONCURRENCY)
+                                    .then()
+                                    .materialize()
+                                    .block()
+                                    .getThrowable();
+        return failure == null;
     }
 
     public QueueMessage.QueueMessageBuilder generateMessageBuilder(CRUDOperation operation, String uploadKey, String orgFiscalCode, String brokerCode, ServiceType serviceType) {
@@ -71,40 +167,155 @@ public class QueueService {
                        .retryCounter(0);
     }
 
-    public boolean enqueueDeleteMessage(ExecutionContext ctx, ObjectMapper om, List<String> IUPDList, QueueMessage.QueueMessageBuilder builder, int delay) {
-        for (int i = 0; i < IUPDList.size(); i += CHUNK_SIZE) {
-            List<String> IUPDSubList = IUPDList.subList(i, Math.min(i + CHUNK_SIZE, IUPDList.size()));
-            QueueMessage message = builder.paymentPositionIUPDs(IUPDSubList).build();
-            try {
-                enqueue(ctx.getInvocationId(), om.writeValueAsString(message), delay);
-            } catch (Exception e) {
-                ctx.getLogger().log(Level.SEVERE, () -> String.format("[id=%s][QueueService] Processing function exception: %s, caused by: %s", ctx.getInvocationId(), e.getMessage(), e.getCause()));
-                return false;
+    public boolean enqueueDeleteMessage(ExecutionContext ctx, List<String> IUPDList, QueueMessage.QueueMessageBuilder builder, int delay) {
+        try {
+            return enqueueAll(ctx.getInvocationId(), packDeleteMessages(IUPDList, builder), delay);
+        } catch (Exception e) {
+            ctx.getLogger().log(Level.SEVERE, () -> String.format("[id=%s][QueueService] Processing function exception: %s, caused by: %s", ctx.getInvocationId(), e.getMessage(), e.getCause()));
+            return false;
+        }
+    }
+
+    public List<byte[]> packDeleteMessages(List<String> IUPDList, QueueMessage.QueueMessageBuilder builder) throws JsonProcessingException, AppException {
+        List<byte[]> messages = new ArrayList<>();
+        packEncoded(IUPDList, MAX_POSITIONS, IUPDs -> builder.paymentPositionIUPDs(IUPDs).build(), messages);
+        return messages;
+    }
+
+    public boolean enqueueUpsertMessage(ExecutionContext ctx, List<PaymentPosition> paymentPositions, QueueMessage.QueueMessageBuilder builder, int delay, Integer maxPositions) {
+        maxPositions = maxPositions != null ? maxPositions : MAX_POSITIONS;
+        if(maxPositions == 0) return false;
+
+        try {
+            return enqueueAll(ctx.getInvocationId(), packUpsertMessages(paymentPositions, builder, maxPositions), delay);
+        } catch (Exception e) {
+            ctx.getLogger().log(Level.SEVERE, () -> String.format("[id=%s][QueueService] Processing function exception: %s, caused by: %s", ctx.getInvocationId(), e.getMessage(), e.getCause()));
+            return false;
+        }
+    }
+
+    /**
+     * Greedy bin-packing of the payment positions into queue messages.
+     * Each position is serialized once and appended to the current message while it fits in the
+     * size budget (envelope included) and the message holds less than maxPositions positions.
+     */
+    public List<byte[]> packUpsertMessages(List<PaymentPosition> paymentPositions, QueueMessage.QueueMessageBuilder builder, int maxPositions) throws JsonProcessingException, AppException {
+        if (codec != QueueCodec.JSON) {
+            List<byte[]> messages = new ArrayList<>();
+            packEncoded(paymentPositions, maxPositions, positions -> builder.paymentPositions(positions).build(), messages);
+            return messages;
+        }
+
+        // the envelope is serialized once with an empty list, the fragments are spliced between the brackets
+        String envelope = ObjectMapperUtils.QUEUE_MESSAGE_WRITER.writeValueAsString(builder.paymentPositions(List.of()).build());
+        int split = envelope.indexOf(POSITIONS_FIELD) + POSITIONS_FIELD.length() - 1;
+        byte[] prefix = envelope.substring(0, split).getBytes(StandardCharsets.UTF_8);
+        byte[] suffix = envelope.substring(split).getBytes(StandardCharsets.UTF_8);
+        int envelopeBytes = prefix.length + suffix.length;
+
+        List<byte[]> messages = new ArrayList<>();
+        ByteArrayOutputStream message = new ByteArrayOutputStream(MAX_MESSAGE_SIZE);
+        message.writeBytes(prefix);
+        int items = 0;
+        for (PaymentPosition paymentPosition : paymentPositions) {
+            byte[] fragment = ObjectMapperUtils.PAYMENT_POSITION_WRITER.writeValueAsBytes(paymentPosition);
+            if (!fits(envelopeBytes + fragment.length))
+                throw new AppException(String.format("Payment position %s exceeds the max queue message size", paymentPosition.getIupd()));
+
+            if (items == maxPositions || !fits(message.size() + suffix.length + 1 + fragment.length)) { // 1 for the comma
+                message.writeBytes(suffix);
+                messages.add(message.toByteArray());
+                message.reset();
+                message.writeBytes(prefix);
+                items = 0;
             }
+            if (items > 0)
+                message.write(',');
+            message.writeBytes(fragment);
+            items++;
+        }
+        if (items > 0) {
+            message.writeBytes(suffix);
+            messages.add(message.toByteArray());
         }
-        return true;
+        return messages;
     }
 
-    public boolean enqueueUpsertMessage(ExecutionContext ctx, ObjectMapper om, List<PaymentPosition> paymentPositions, QueueMessage.QueueMessageBuilder builder, int delay, Integer chunkSize) {
-        chunkSize = chunkSize != null ? chunkSize : CHUNK_SIZE;
-        if(chunkSize == 0) return false;
+    /**
+     * Packing with a compact codec (or of IUPDs): the encoded size isn't the sum of the items sizes, so each message is
+     * encoded as a whole, starting from maxPositions items, and shrunk in proportion to its excess until it fits
+     */
+    private <T> void packEncoded(List<T> items, int maxPositions, Function<List<T>, QueueMessage> toQueueMessage, List<byte[]> messages) throws JsonProcessingException, AppException {
+        int from = 0;
+        while (from < items.size()) {
+            int count = Math.min(maxPositions, items.size() - from);
+            byte[] message = QueueMessageCodec.encode(toQueueMessage.apply(items.subList(from, from + count)), codec);
+            int size = storedSize(message.length);
+            while (size > MAX_MESSAGE_SIZE) {
+                if (count == 1)
+                    throw new AppException("Queue message item exceeds the max queue message size");
+                count = Math.max(1, Math.min(count - 1, (int) ((long) count * MAX_MESSAGE_SIZE / size)));
+                message = QueueMessageCodec.encode(toQueueMessage.apply(items.subList(from, from + count)), codec);
+                size = storedSize(message.length);
+            }
+            messages.add(message);
+            from += count;
+        }
+    }
 
+    /**
+     * Claim-check packing: each chunk of chunkSize positions is staged in a blob, whatever its size
+     * @return the reference messages, one per chunk
+     */
+    public List<byte[]> claimCheckUpsertMessages(List<PaymentPosition> paymentPositions, QueueMessage.QueueMessageBuilder builder, int chunkSize) throws JsonProcessingException, AppException {
+        List<byte[]> messages = new ArrayList<>();
         for (int i = 0; i < paymentPositions.size(); i += chunkSize) {
-            List<PaymentPosition> positionSubList = paymentPositions.subList(i, Math.min(i + chunkSize, paymentPositions.size()));
-            QueueMessage queueMessage = builder.paymentPositions(positionSubList).build();
-
-            try {
-                String message = om.writeValueAsString(queueMessage);
-
-                if(message.length() > 64 * Constants.KB) // 64 KB is the max size for the queue message
-                    enqueueUpsertMessage(ctx, om, positionSubList, builder, delay, chunkSize/2);
-                else
-                    enqueue(ctx.getInvocationId(), message, delay);
-            } catch (Exception e) {
-                ctx.getLogger().log(Level.SEVERE, () -> String.format("[id=%s][QueueService] Processing function exception: %s, caused by: %s", ctx.getInvocationId(), e.getMessage(), e.getCause()));
-                return false;
-            }
+            List<PaymentPosition> chunk = paymentPositions.subList(i, Math.min(i + chunkSize, paymentPositions.size()));
+            messages.add(claimCheck(builder.paymentPositions(chunk).build(), chunk.get(0).getIupd(), chunk.get(chunk.size() - 1).getIupd()));
         }
-        return true;
+        return messages;
+    }
+
+    public List<byte[]> claimCheckDeleteMessages(List<String> IUPDList, QueueMessage.QueueMessageBuilder builder, int chunkSize) throws JsonProcessingException, AppException {
+        List<byte[]> messages = new ArrayList<>();
+        for (int i = 0; i < IUPDList.size(); i += chunkSize) {
+            List<String> chunk = IUPDList.subList(i, Math.min(i + chunkSize, IUPDList.size()));
+            messages.add(claimCheck(builder.paymentPositionIUPDs(chunk).build(), chunk.get(0), chunk.get(chunk.size() - 1)));
+        }
+        return messages;
+    }
+
+    /**
+     * Serializes a single message (e.g. a retry): if it exceeds the max queue message size and claim-check is enabled, its payload is staged
+     */
+    public byte[] toQueueMessage(QueueMessage queueMessage) throws JsonProcessingException, AppException {
+        byte[] message = QueueMessageCodec.encode(queueMessage, codec);
+        if (!CLAIM_CHECK_ENABLED || fits(message.length))
+            return message;
+        List<String> IUPDList = queueMessage.getPaymentPositions() != null
+                                        ? queueMessage.getPaymentPositions().stream().map(PaymentPosition::getIupd).toList()
+                                        : queueMessage.getPaymentPositionIUPDs();
+        return claimCheck(queueMessage, IUPDList.get(0), IUPDList.get(IUPDList.size() - 1));
+    }
+
+    private byte[] claimCheck(QueueMessage payload, String firstIUPD, String lastIUPD) throws JsonProcessingException, AppException {
+        String payloadBlob = BlobRepository.getInstance(logger).stagePayload(payload.getBrokerCode(), payload.getOrganizationFiscalCode(), payload.getUploadKey(), payload);
+        return ObjectMapperUtils.QUEUE_MESSAGE_WRITER.writeValueAsBytes(payload.toBuilder()
+                                                                               .paymentPositions(null)
+                                                                               .paymentPositionIUPDs(null)
+                                                                               .payloadBlob(payloadBlob)
+                                                                               .firstIUPD(firstIUPD)
+                                                                               .lastIUPD(lastIUPD)
+                                                                               .build());
+    }
+
+    private boolean fits(int bytes) {
+        return storedSize(bytes) <= MAX_MESSAGE_SIZE;
+    }
+
+    // the queue stores the message base64-encoded, so the budget applies to the encoded size
+    private static int storedSize(int bytes) {
+        boolean encoded = MESSAGE_ENCODING == QueueMessageEncoding.BASE64;
+        return encoded ? 4 * ((bytes + 2) / 3) : bytes;
     }
-}
\ No newline at end of file
+}
@@ -1,20 +1,24 @@
 package it.gov.pagopa.gpd.upload.service;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import it.gov.pagopa.gpd.upload.entity.DeleteMessage;
+import it.gov.pagopa.gpd.upload.entity.RawUpsertMessage;
 import it.gov.pagopa.gpd.upload.entity.UpsertMessage;
 import it.gov.pagopa.gpd.upload.model.RequestGPD;
 import it.gov.pagopa.gpd.upload.model.enumeration.ServiceType;
 import it.gov.pagopa.gpd.upload.model.pd.MultipleIUPD;
 import it.gov.pagopa.gpd.upload.model.pd.PaymentPositions;
+import it.gov.pagopa.gpd.upload.model.pd.RawPaymentPosition;
+import it.gov.pagopa.gpd.upload.util.ObjectMapperUtils;
 
 import java.util.List;
 import java.util.Optional;
 
 public class RequestTranslator {
     private static RequestTranslator instance;
+    // same envelope as the serialized PaymentPositions
+    private static final String POSITIONS_PREFIX = "{\"paymentPositions\":[";
+    private static final String POSITIONS_SUFFIX = "]}";
 
     public RequestTranslator() {
     }
@@ -31,9 +35,7 @@ public class RequestTranslator {
             case BULK -> generateRequest(RequestGPD.Mode.BULK, upsertMessage.getOrganizationFiscalCode(),
                     new PaymentPositions(upsertMessage.getPaymentPositions()), upsertMessage.getServiceType());
             case SINGLE -> generateRequest(RequestGPD.Mode.SINGLE, upsertMessage.getOrganizationFiscalCode(),
-                    new PaymentPositions(upsertMessage.getPaymentPositions()
-                            .stream()
-                            .filter(pp -> pp.getIupd().equals(IUPD.get())).toList()), upsertMessage.getServiceType());
+                    new PaymentPositions(upsertMessage.getPaymentPositions(IUPD.get())), upsertMessage.getServiceType());
         };
     }
 
@@ -46,14 +48,37 @@ public class RequestTranslator {
         };
     }
 
+    public RequestGPD create(RawUpsertMessage upsertMessage, RequestGPD.Mode mode, Optional<String> IUPD) {
+        return switch (mode) {
+            case BULK -> generateRequest(RequestGPD.Mode.BULK, upsertMessage.getOrganizationFiscalCode(),
+                    upsertMessage.getPaymentPositions(), upsertMessage.getServiceType());
+            case SINGLE -> generateRequest(RequestGPD.Mode.SINGLE, upsertMessage.getOrganizationFiscalCode(),
+                    upsertMessage.getPaymentPositions(IUPD.get()), upsertMessage.getServiceType());
+        };
+    }
+
+    // BULK request restricted to a subset of the message
+    public RequestGPD create(UpsertMessage upsertMessage, List<String> filterByIUPD) {
+        return generateRequest(RequestGPD.Mode.BULK, upsertMessage.getOrganizationFiscalCode(),
+                new PaymentPositions(upsertMessage.getPaymentPositions(filterByIUPD)), upsertMessage.getServiceType());
+    }
+
+    public RequestGPD create(RawUpsertMessage upsertMessage, List<String> filterByIUPD) {
+        return generateRequest(RequestGPD.Mode.BULK, upsertMessage.getOrganizationFiscalCode(),
+                upsertMessage.getPaymentPositions(filterByIUPD), upsertMessage.getServiceType());
+    }
+
+    public RequestGPD create(DeleteMessage deleteMessage, List<String> filterByIUPD) {
+        return generateRequest(RequestGPD.Mode.BULK, deleteMessage.getOrganizationFiscalCode(),
+                new MultipleIUPD(filterByIUPD), deleteMessage.getServiceType());
+    }
+
     private RequestGPD generateRequest(RequestGPD.Mode mode, String orgFiscalCode, PaymentPositions paymentPositions, ServiceType serviceType) {
-        ObjectMapper om = new ObjectMapper();
-        om.registerModule(new JavaTimeModule());
         try {
             return RequestGPD.builder()
                     .mode(mode)
                     .orgFiscalCode(orgFiscalCode)
-                    .body(om.writeValueAsString(paymentPositions))
+                    .body(ObjectMapperUtils.PAYMENT_POSITIONS_WRITER.writeValueAsString(paymentPositions))
                     .serviceType(serviceType)
                     .build();
         } catch (JsonProcessingException e) {
@@ -61,14 +86,31 @@ public class RequestTranslator {
         }
     }
 
+    // the fragments are concatenated as they are: no binding, no serialization
+    private RequestGPD generateRequest(RequestGPD.Mode mode, String orgFiscalCode, List<RawPaymentPosition> paymentPositions, ServiceType serviceType) {
+        int length = POSITIONS_PREFIX.length() + POSITIONS_SUFFIX.length() + paymentPositions.size();
+        for (RawPaymentPosition paymentPosition : paymentPositions)
+            length += paymentPosition.getJson().length();
+        StringBuilder body = new StringBuilder(length).append(POSITIONS_PREFIX);
+        for (int i = 0; i < paymentPositions.size(); i++) {
+            if (i > 0)
+                body.append(',');
+            body.append(paymentPositions.get(i).getJson());
+        }
+        return RequestGPD.builder()
+                .mode(mode)
+                .orgFiscalCode(orgFiscalCode)
+                .body(body.append(POSITIONS_SUFFIX).toString())
+                .serviceType(serviceType)
+                .build();
+    }
+
     private RequestGPD generateRequest(RequestGPD.Mode mode, String orgFiscalCode, MultipleIUPD multipleIUPD, ServiceType serviceType) {
-        ObjectMapper om = new ObjectMapper();
-        om.registerModule(new JavaTimeModule());
         try {
             return RequestGPD.builder()
                     .mode(mode)
                     .orgFiscalCode(orgFiscalCode)
-                    .body(om.writeValueAsString(multipleIUPD))
+                    .body(ObjectMapperUtils.MULTIPLE_IUPD_WRITER.writeValueAsString(multipleIUPD))
                     .serviceType(serviceType)
                     .build();
         } catch (JsonProcessingException e) {
@@ -49,6 +49,7 @@ public class StatusService {
                 .upload(Upload.builder()
                         .current(0)
                         .total(totalPosition)
+                        .ingesting(true)
                         .responses(new ArrayList<>())
                         .start(LocalDateTime.now()).build())
                 .build();
@@ -71,33 +72,53 @@ public class StatusService {
         return getStatusRepository().partialUpdate(key, fiscalCode, endTime);
     }
 
-    public synchronized void updateStatus(String invocationId, String fiscalCode, String key, List<ResponseEntry> entries) throws AppException {
-        try {
-            Status status = getStatusRepository().getStatus(invocationId, key, fiscalCode);
-            for (ResponseEntry entry : entries) {
-                logger.log(Level.SEVERE, () -> String.format("[id=%s][StatusService] Add response %s", invocationId, entry.getStatusMessage()));
+    // the total is set, not incremented: an upload read again (redelivery, expired lock) keeps the total of its positions
+    public void startIngestion(String invocationId, String fiscalCode, String key, int total) throws AppException {
+        getStatusRepository().startIngestion(invocationId, key, fiscalCode, total);
+    }
 
-                status.upload.addResponse(entry);
-            }
-            getStatusRepository().upsertStatus(invocationId, status.id, status);
+    // the total is final: returns the updated status to check if the upload is already completed
+    public Status endIngestion(String invocationId, String fiscalCode, String key) throws AppException {
+        return getStatusRepository().endIngestion(invocationId, key, fiscalCode);
+    }
+
+    // entries of the same status are merged and written in a shard, current is incremented in place: no read-modify-write of the document
+    public void updateStatus(String invocationId, String fiscalCode, String key, List<ResponseEntry> entries) throws AppException {
+        List<String> chunk = entries.stream().flatMap(entry -> entry.getRequestIDs().stream()).toList();
+        this.updateStatus(invocationId, fiscalCode, key, List.of(chunk), entries);
+    }
+
+    // chunks: IUPDs of each queue message processed, a shard is written for each of them
+    public void updateStatus(String invocationId, String fiscalCode, String key, List<List<String>> chunks, List<ResponseEntry> entries) throws AppException {
+        Upload merged = Upload.builder().responses(new ArrayList<>(entries)).build();
+        for (ResponseEntry entry : entries) {
+            logger.log(Level.SEVERE, () -> String.format("[id=%s][StatusService] Add response %s", invocationId, entry.getStatusMessage()));
+        }
+        try {
+            getStatusRepository().appendResponses(invocationId, key, fiscalCode, chunks, merged.mergedResponses());
         } catch (AppException e) {
-            logger.log(Level.SEVERE, () -> String.format("[id=%s][StatusService] Error while update upload Status", "invocationId"));
+            logger.log(Level.SEVERE, () -> String.format("[id=%s][StatusService] Error while update upload Status", invocationId));
             throw new AppException("Error while update upload Status");
         }
     }
 
+    // responses of all the processed chunks
+    public List<ResponseEntry> getResponses(String invocationId, String fiscalCode, String key) throws AppException {
+        return getStatusRepository().getResponses(invocationId, key, fiscalCode);
+    }
+
     // method overloading: handle a list of IUPDs and related response -> all IUPDs must be associated to the same response
-    public void appendResponse(String invocationId, String fiscalCode, String key, List<String> iupds, ResponseGPD response) throws AppException {
+    public void appendResponse(String invocationId, String fiscalCode, String key, List<List<String>> chunks, ResponseGPD response) throws AppException {
         ResponseEntry entry = ResponseEntry.builder()
                 .statusCode(response.getStatus())
                 .statusMessage(Optional.ofNullable(response.getDetail()).orElse(""))
-                .requestIDs(iupds)
+                .requestIDs(chunks.stream().flatMap(List::stream).toList())
                 .build();
-        this.updateStatus(invocationId, fiscalCode, key, List.of(entry));
+        this.updateStatus(invocationId, fiscalCode, key, chunks, List.of(entry));
     }
 
     // method overloading: handle a map of GPD response
-    public void appendResponses(String invocationId, String fiscalCode, String key, Map<String, ResponseGPD> responses) throws AppException {
+    public void appendResponses(String invocationId, String fiscalCode, String key, List<List<String>> chunks, Map<String, ResponseGPD> responses) throws AppException {
         List<ResponseEntry> entries = new ArrayList<>();
         for (String iupd : responses.keySet()) {
             ResponseGPD response = responses.get(iupd);
@@ -109,7 +130,7 @@ public class StatusService {
             entries.add(responseEntry);
         }
 
-        this.updateStatus(invocationId, fiscalCode, key, entries);
+        this.updateStatus(invocationId, fiscalCode, key, chunks, entries);
     }
 
     public StatusRepository getStatusRepository() {
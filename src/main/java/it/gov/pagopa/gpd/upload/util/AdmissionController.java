@@ -0,0 +1,149 @@
+package it.gov.pagopa.gpd.upload.util;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Admission of new uploads based on heap headroom, in place of forcing a GC after every invocation.
+ * The live heap is estimated from the usage after the last GC (GC notifications) or the current usage if lower:
+ * an upload is admitted if its size fits under ADMISSION_HEAP_THRESHOLD of the max heap, otherwise it waits
+ * for a collection to free enough memory, up to ADMISSION_MAX_WAIT_MS, and then it's rejected.
+ */
+public class AdmissionController {
+
+    private static volatile AdmissionController instance;
+
+    private static final double HEAP_THRESHOLD = System.getenv("ADMISSION_HEAP_THRESHOLD") != null ? Double.parseDouble(System.getenv("ADMISSION_HEAP_THRESHOLD")) : 0.85;
+    private static final long MAX_WAIT_MS = System.getenv("ADMISSION_MAX_WAIT_MS") != null ? Long.parseLong(System.getenv("ADMISSION_MAX_WAIT_MS")) : 30000;
+
+    private final MemoryMXBean memoryMXBean;
+    private final double threshold;
+    private final long maxWaitMs;
+    private final Object gcMonitor = new Object();
+
+    private volatile long usedAfterGc = Long.MAX_VALUE; // unknown until the first GC
+    private final AtomicLong collections = new AtomicLong();
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong delayed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public static AdmissionController getInstance() {
+        if (instance == null) {
+            synchronized (AdmissionController.class) {
+                if (instance == null) {
+                    instance = new AdmissionController(ManagementFactory.getMemoryMXBean(), HEAP_THRESHOLD, MAX_WAIT_MS);
+                    instance.listenGarbageCollections();
+                }
+            }
+        }
+        return instance;
+    }
+
+    public AdmissionController(MemoryMXBean memoryMXBean, double threshold, long maxWaitMs) {
+        this.memoryMXBean = memoryMXBean;
+        this.threshold = threshold;
+        this.maxWaitMs = maxWaitMs;
+    }
+
+    /**
+     * Waits until the heap has room for the requested bytes
+     * @return false if there is no room after ADMISSION_MAX_WAIT_MS
+     */
+    public boolean admit(long requestedBytes) {
+        long limit = getLimit();
+        // blobs are streamed in segments, the size is an upper bound: capped so that a large upload only needs half of the limit free
+        long requested = Math.min(requestedBytes, limit / 2);
+        if (fits(requested, limit)) {
+            admitted.incrementAndGet();
+            return true;
+        }
+
+        delayed.incrementAndGet();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMs);
+        synchronized (gcMonitor) {
+            long remaining;
+            while ((remaining = deadline - System.nanoTime()) > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(gcMonitor, remaining); // woken up by every GC
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                if (fits(requested, limit)) {
+                    admitted.incrementAndGet();
+                    return true;
+                }
+            }
+        }
+        rejected.incrementAndGet();
+        return false;
+    }
+
+    public Map<String, Long> getMetrics() {
+        MemoryUsage heap = memoryMXBean.getHeapMemoryUsage();
+        Map<String, Long> metrics = new LinkedHashMap<>();
+        metrics.put("heapUsed", heap.getUsed());
+        metrics.put("heapUsedAfterGc", usedAfterGc == Long.MAX_VALUE ? -1 : usedAfterGc);
+        metrics.put("heapLimit", getLimit());
+        metrics.put("collections", collections.get());
+        metrics.put("admitted", admitted.get());
+        metrics.put("delayed", delayed.get());
+        metrics.put("rejected", rejected.get());
+        return metrics;
+    }
+
+    // called by the GC notification listener
+    void onCollection(long heapUsedAfterGc) {
+        usedAfterGc = heapUsedAfterGc;
+        collections.incrementAndGet();
+        synchronized (gcMonitor) {
+            gcMonitor.notifyAll();
+        }
+    }
+
+    private boolean fits(long requested, long limit) {
+        long live = Math.min(memoryMXBean.getHeapMemoryUsage().getUsed(), usedAfterGc);
+        return live + requested <= limit;
+    }
+
+    private long getLimit() {
+        MemoryUsage heap = memoryMXBean.getHeapMemoryUsage();
+        long max = heap.getMax() > 0 ? heap.getMax() : heap.getCommitted();
+        return (long) (max * threshold);
+    }
+
+    private void listenGarbageCollections() {
+        Set<String> heapPools = ManagementFactory.getMemoryPoolMXBeans().stream()
+                                        .filter(pool -> pool.getType() == MemoryType.HEAP)
+                                        .map(MemoryPoolMXBean::getName)
+                                        .collect(Collectors.toSet());
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (!(gc instanceof NotificationEmitter emitter))
+                continue;
+            emitter.addNotificationListener((notification, handback) -> {
+                if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType()))
+                    return;
+                GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                long used = info.getGcInfo().getMemoryUsageAfterGc().entrySet().stream()
+                                    .filter(pool -> heapPools.contains(pool.getKey()))
+                                    .mapToLong(pool -> pool.getValue().getUsed())
+                                    .sum();
+                onCollection(used);
+            }, null, null);
+        }
+    }
+}
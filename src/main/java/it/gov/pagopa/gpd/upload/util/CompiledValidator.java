@@ -0,0 +1,182 @@
+package it.gov.pagopa.gpd.upload.util;
+
+import it.gov.pagopa.gpd.upload.model.pd.PaymentOption;
+import it.gov.pagopa.gpd.upload.model.pd.PaymentOptionMetadata;
+import it.gov.pagopa.gpd.upload.model.pd.PaymentPosition;
+import it.gov.pagopa.gpd.upload.model.pd.Transfer;
+import it.gov.pagopa.gpd.upload.model.pd.TransferMetadata;
+import java.net.IDN;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Hand-specialized validation of the PaymentPosition tree: the Bean Validation constraints declared on
+ * PaymentPosition, PaymentOption, Transfer and their metadata written as plain code, with the same messages.
+ * Violations are sorted by property path (then message), as GPDValidator does with the Bean Validation ones,
+ * so both engines report the same first violation.
+ * Parity limits:
+ * - messages are the templates of the default Hibernate Validator bundle, not resolved for the locale
+ * - @Email follows the Hibernate Validator 8 email check (local part and domain patterns, IDN conversion)
+ * - Stamp is not checked: Transfer.stamp has no @Valid, so Bean Validation doesn't cascade to it either
+ * NOTE: keep aligned with the annotations of the model.
+ */
+public class CompiledValidator {
+
+    private static final String SIZE_MESSAGE = "size must be between %d and %d";
+
+    // patterns of Hibernate Validator AbstractEmailValidator and DomainNameUtil
+    private static final int MAX_LOCAL_PART_LENGTH = 64;
+    private static final int MAX_DOMAIN_PART_LENGTH = 255;
+    private static final String LOCAL_PART_ATOM = "[a-z0-9!#$%&'*+/=?^_`{|}~\u0080-\uffff-]";
+    private static final String LOCAL_PART_INSIDE_QUOTES_ATOM = "(?:[a-z0-9!#$%&'*.(),<>\\[\\]:;  @+/=?^_`{|}~\u0080-\uffff-]|\\\\\\\\|\\\\\\\")";
+    private static final Pattern LOCAL_PART_PATTERN = Pattern.compile(
+            "(?:" + LOCAL_PART_ATOM + "+|\"" + LOCAL_PART_INSIDE_QUOTES_ATOM + "+\")" +
+                    "(?:\\.(?:" + LOCAL_PART_ATOM + "+|\"" + LOCAL_PART_INSIDE_QUOTES_ATOM + "+\"))*",
+            Pattern.CASE_INSENSITIVE);
+    private static final String DOMAIN_CHARS_WITHOUT_DASH = "[a-z\u0080-\uffff0-9!#$%&'*+/=?^_`{|}~]";
+    private static final String DOMAIN_LABEL = "(?:" + DOMAIN_CHARS_WITHOUT_DASH + "-*)*" + DOMAIN_CHARS_WITHOUT_DASH + "+";
+    private static final String DOMAIN = DOMAIN_LABEL + "+(?:\\." + DOMAIN_LABEL + "+)*";
+    private static final String IP_DOMAIN = "[0-9]{1,3}\\.[0-9]{1,3}\\.[0-9]{1,3}\\.[0-9]{1,3}";
+    private static final String IP_V6_DOMAIN = "(?:(?:[0-9a-fA-F]{1,4}:){7,7}[0-9a-fA-F]{1,4}|(?:[0-9a-fA-F]{1,4}:){1,7}:|(?:[0-9a-fA-F]{1,4}:){1,6}:[0-9a-fA-F]{1,4}|(?:[0-9a-fA-F]{1,4}:){1,5}(?::[0-9a-fA-F]{1,4}){1,2}|(?:[0-9a-fA-F]{1,4}:){1,4}(?::[0-9a-fA-F]{1,4}){1,3}|(?:[0-9a-fA-F]{1,4}:){1,3}(?::[0-9a-fA-F]{1,4}){1,4}|(?:[0-9a-fA-F]{1,4}:){1,2}(?::[0-9a-fA-F]{1,4}){1,5}|[0-9a-fA-F]{1,4}:(?:(?::[0-9a-fA-F]{1,4}){1,6})|:(?:(?::[0-9a-fA-F]{1,4}){1,7}|:)|fe80:(?::[0-9a-fA-F]{0,4}){0,4}%[0-9a-zA-Z]{1,}|::(?:ffff(:0{1,4}){0,1}:){0,1}(?:(?:25[0-5]|(?:2[0-4]|1{0,1}[0-9]){0,1}[0-9])\\.){3,3}(?:25[0-5]|(?:2[0-4]|1{0,1}[0-9]){0,1}[0-9])|(?:[0-9a-fA-F]{1,4}:){1,4}:(?:(?:25[0-5]|(?:2[0-4]|1{0,1}[0-9]){0,1}[0-9])\\.){3,3}(?:25[0-5]|(?:2[0-4]|1{0,1}[0-9]){0,1}[0-9]))";
+    private static final Pattern EMAIL_DOMAIN_PATTERN = Pattern.compile(
+            DOMAIN + "|\\[" + IP_DOMAIN + "\\]|\\[IPv6:" + IP_V6_DOMAIN + "\\]", Pattern.CASE_INSENSITIVE);
+    public static final Comparator<Violation> ORDER = Comparator.comparing(Violation::path).thenComparing(Violation::message);
+
+    public record Violation(String path, String message) {
+    }
+
+    private CompiledValidator() {
+    }
+
+    /**
+     * @return the messages of the violated constraints, empty if the position is valid
+     */
+    public static List<String> validate(PaymentPosition pp) {
+        List<Violation> violations = new ArrayList<>(0);
+        notBlank(violations, "iupd", pp.getIupd(), "iupd is required");
+        notNull(violations, "type", pp.getType(), "type is required");
+        notBlank(violations, "fiscalCode", pp.getFiscalCode(), "fiscal code is required");
+        notBlank(violations, "fullName", pp.getFullName(), "full name is required");
+        if (pp.getCountry() != null && !isCountry(pp.getCountry()))
+            violations.add(new Violation("country", "The country must be reported with two capital letters (example: IT)"));
+        if (pp.getEmail() != null && !isEmail(pp.getEmail()))
+            violations.add(new Violation("email", "Please provide a valid email address"));
+        notNull(violations, "switchToExpired", pp.getSwitchToExpired(), "switch to expired value is required");
+        notBlank(violations, "companyName", pp.getCompanyName(), "company name is required");
+        maxLength(violations, "companyName", pp.getCompanyName(), 140);
+        maxLength(violations, "officeName", pp.getOfficeName(), 140);
+
+        if (pp.getPaymentOption() != null) {
+            for (int i = 0; i < pp.getPaymentOption().size(); i++) {
+                PaymentOption po = pp.getPaymentOption().get(i);
+                if (po != null)
+                    validate(violations, "paymentOption[" + i + "].", po);
+            }
+        }
+        if (violations.isEmpty())
+            return List.of();
+        return violations.stream().sorted(ORDER).map(Violation::message).toList();
+    }
+
+    private static void validate(List<Violation> violations, String prefix, PaymentOption po) {
+        notBlank(violations, prefix + "iuv", po.getIuv(), "iuv is required");
+        notNull(violations, prefix + "amount", po.getAmount(), "amount is required");
+        notBlank(violations, prefix + "description", po.getDescription(), "payment option description is required");
+        maxLength(violations, prefix + "description", po.getDescription(), 140);
+        notNull(violations, prefix + "isPartialPayment", po.getIsPartialPayment(), "is partial payment is required");
+        notNull(violations, prefix + "dueDate", po.getDueDate(), "due date is required");
+
+        if (po.getTransfer() != null) {
+            for (int i = 0; i < po.getTransfer().size(); i++) {
+                Transfer transfer = po.getTransfer().get(i);
+                if (transfer != null)
+                    validate(violations, prefix + "transfer[" + i + "].", transfer);
+            }
+        }
+        maxSize(violations, prefix + "paymentOptionMetadata", po.getPaymentOptionMetadata(), 10);
+        if (po.getPaymentOptionMetadata() != null) {
+            for (int i = 0; i < po.getPaymentOptionMetadata().size(); i++) {
+                PaymentOptionMetadata metadata = po.getPaymentOptionMetadata().get(i);
+                if (metadata != null)
+                    notBlank(violations, prefix + "paymentOptionMetadata[" + i + "].key", metadata.getKey(), "key is required");
+            }
+        }
+    }
+
+    private static void validate(List<Violation> violations, String prefix, Transfer transfer) {
+        notBlank(violations, prefix + "idTransfer", transfer.getIdTransfer(), "id transfer is required");
+        notNull(violations, prefix + "amount", transfer.getAmount(), "amount is required");
+        notBlank(violations, prefix + "remittanceInformation", transfer.getRemittanceInformation(), "remittance information is required");
+        notBlank(violations, prefix + "category", transfer.getCategory(), "category is required");
+
+        maxSize(violations, prefix + "transferMetadata", transfer.getTransferMetadata(), 10);
+        if (transfer.getTransferMetadata() != null) {
+            for (int i = 0; i < transfer.getTransferMetadata().size(); i++) {
+                TransferMetadata metadata = transfer.getTransferMetadata().get(i);
+                if (metadata != null)
+                    notBlank(violations, prefix + "transferMetadata[" + i + "].key", metadata.getKey(), "key is required");
+            }
+        }
+    }
+
+    private static void notNull(List<Violation> violations, String path, Object value, String message) {
+        if (value == null)
+            violations.add(new Violation(path, message));
+    }
+
+    // same as @NotBlank: null or only whitespaces
+    private static void notBlank(List<Violation> violations, String path, String value, String message) {
+        if (value == null || value.trim().isEmpty())
+            violations.add(new Violation(path, message));
+    }
+
+    private static void maxLength(List<Violation> violations, String path, String value, int max) {
+        if (value != null && value.length() > max)
+            violations.add(new Violation(path, String.format(SIZE_MESSAGE, 0, max)));
+    }
+
+    private static void maxSize(List<Violation> violations, String path, Collection<?> value, int max) {
+        if (value != null && value.size() > max)
+            violations.add(new Violation(path, String.format(SIZE_MESSAGE, 0, max)));
+    }
+
+    // [A-Z]{2}
+    private static boolean isCountry(String value) {
+        return value.length() == 2 && isUpperLetter(value.charAt(0)) && isUpperLetter(value.charAt(1));
+    }
+
+    private static boolean isUpperLetter(char c) {
+        return c >= 'A' && c <= 'Z';
+    }
+
+    // same as @Email without regexp: empty is valid, local part and domain are split at the last '@'
+    private static boolean isEmail(String value) {
+        if (value.isEmpty())
+            return true;
+        int at = value.lastIndexOf('@');
+        if (at < 0)
+            return false;
+        String localPart = value.substring(0, at);
+        String domainPart = value.substring(at + 1);
+        if (localPart.length() > MAX_LOCAL_PART_LENGTH || !LOCAL_PART_PATTERN.matcher(localPart).matches())
+            return false;
+        return isEmailDomain(domainPart);
+    }
+
+    private static boolean isEmailDomain(String domain) {
+        if (domain.endsWith("."))
+            return false;
+        String asciiDomain;
+        try {
+            asciiDomain = IDN.toASCII(domain);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        if (asciiDomain.length() > MAX_DOMAIN_PART_LENGTH)
+            return false;
+        return EMAIL_DOMAIN_PATTERN.matcher(domain).matches();
+    }
+}
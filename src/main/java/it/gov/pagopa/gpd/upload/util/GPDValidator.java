@@ -4,44 +4,101 @@ import com.microsoft.azure.functions.ExecutionContext;
 import com.microsoft.azure.functions.HttpStatus;
 import it.gov.pagopa.gpd.upload.entity.ResponseEntry;
 import it.gov.pagopa.gpd.upload.exception.AppException;
+import it.gov.pagopa.gpd.upload.model.enumeration.ValidationEngine;
 import it.gov.pagopa.gpd.upload.model.pd.PaymentPosition;
 import it.gov.pagopa.gpd.upload.service.StatusService;
-import jakarta.validation.ConstraintViolation;
 import jakarta.validation.Validator;
 import jakarta.validation.ValidatorFactory;
 
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.IntStream;
 
 public class GPDValidator {
 
+    // segments larger than this are validated in parallel
+    public static final int PARALLEL_THRESHOLD = System.getenv("VALIDATION_PARALLEL_THRESHOLD") != null ? Integer.parseInt(System.getenv("VALIDATION_PARALLEL_THRESHOLD")) : 500;
+    private static final int PARALLELISM = System.getenv("VALIDATION_PARALLELISM") != null ? Integer.parseInt(System.getenv("VALIDATION_PARALLELISM")) : Runtime.getRuntime().availableProcessors();
+
+    // the factory holds the constraint metadata of the model: built once, Validator is thread-safe
+    private static final ValidatorFactory FACTORY = jakarta.validation.Validation.buildDefaultValidatorFactory();
+    static final Validator VALIDATOR = FACTORY.getValidator();
+    private static final ForkJoinPool POOL = new ForkJoinPool(PARALLELISM);
+    // COMPILED skips the reflective walk of Bean Validation, see CompiledValidator
+    public static final ValidationEngine ENGINE =
+            System.getenv("VALIDATION_ENGINE") != null ? ValidationEngine.valueOf(System.getenv("VALIDATION_ENGINE")) : ValidationEngine.BEAN_VALIDATION;
+
     public static boolean validate(ExecutionContext ctx, List<PaymentPosition> paymentPositions, String fiscalCode, String uploadKey) {
-        ValidatorFactory factory = jakarta.validation.Validation.buildDefaultValidatorFactory();
-        Validator validator = factory.getValidator();
-        Set<ConstraintViolation<PaymentPosition>> violations;
-        List<ResponseEntry> entries = new ArrayList<>();
+        return validate(ctx, paymentPositions, fiscalCode, uploadKey, null);
+    }
 
-        Iterator<PaymentPosition> iterator = paymentPositions.iterator();
-        while (iterator.hasNext()) {
-            PaymentPosition paymentPosition = iterator.next();
-            violations =  validator.validate(paymentPosition);
+    /**
+     * Bean Validation followed, if not null, by the pre-flight business rules: the rejected positions are removed from the list
+     */
+    public static boolean validate(ExecutionContext ctx, List<PaymentPosition> paymentPositions, String fiscalCode, String uploadKey, PreflightValidator preflight) {
+        List<ResponseEntry> entries = removeInvalid(ctx.getLogger(), paymentPositions);
+        if (preflight != null)
+            entries.addAll(preflight.removeRejected(ctx.getLogger(), paymentPositions));
 
-            if (!violations.isEmpty()) {
-                entries.add(createResponseEntry(ctx.getLogger(), paymentPosition, violations));
-                iterator.remove();
-            }
-        }
+        // validation runs once per segment: skip the status round trip when the segment is valid
+        if (entries.isEmpty())
+            return true;
 
         return updateStatus(ctx, fiscalCode, uploadKey, entries);
     }
 
-    private static ResponseEntry createResponseEntry(Logger logger, PaymentPosition paymentPosition, Set<ConstraintViolation<PaymentPosition>> violations) {
-        ConstraintViolation<PaymentPosition> violation = violations.stream().findFirst().orElse(null);
-        String details = (violation != null ? violation.getMessage() : "");
+    /**
+     * Removes the invalid positions from the list and returns an entry for each of them, in input order
+     */
+    public static List<ResponseEntry> removeInvalid(Logger logger, List<PaymentPosition> paymentPositions) {
+        return removeInvalid(logger, paymentPositions, ENGINE);
+    }
+
+    @SuppressWarnings("unchecked")
+    public static List<ResponseEntry> removeInvalid(Logger logger, List<PaymentPosition> paymentPositions, ValidationEngine engine) {
+        int size = paymentPositions.size();
+        List<String>[] violations = new List[size];
+        if (size > PARALLEL_THRESHOLD && PARALLELISM > 1) {
+            POOL.submit(() -> IntStream.range(0, size).parallel()
+                                      .forEach(i -> violations[i] = violations(paymentPositions.get(i), engine)))
+                    .join();
+        } else {
+            for (int i = 0; i < size; i++)
+                violations[i] = violations(paymentPositions.get(i), engine);
+        }
+
+        List<ResponseEntry> entries = new ArrayList<>();
+        List<PaymentPosition> valid = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            if (violations[i].isEmpty())
+                valid.add(paymentPositions.get(i));
+            else
+                entries.add(createResponseEntry(logger, paymentPositions.get(i), violations[i]));
+        }
+
+        if (!entries.isEmpty()) {
+            paymentPositions.clear();
+            paymentPositions.addAll(valid);
+        }
+        return entries;
+    }
+
+    private static List<String> violations(PaymentPosition paymentPosition, ValidationEngine engine) {
+        if (engine == ValidationEngine.COMPILED)
+            return CompiledValidator.validate(paymentPosition);
+        // the violations are an unordered Set: sorted as the compiled ones, so the reported (first) one is deterministic
+        return VALIDATOR.validate(paymentPosition).stream()
+                       .map(violation -> new CompiledValidator.Violation(violation.getPropertyPath().toString(), violation.getMessage()))
+                       .sorted(CompiledValidator.ORDER)
+                       .map(CompiledValidator.Violation::message)
+                       .toList();
+    }
+
+    private static ResponseEntry createResponseEntry(Logger logger, PaymentPosition paymentPosition, List<String> violations) {
+        String details = violations.stream().findFirst().orElse("");
 
         ResponseEntry responseEntry = ResponseEntry.builder()
                                               .statusCode(HttpStatus.BAD_REQUEST.value())
@@ -49,8 +106,8 @@ public class GPDValidator {
                                               .requestIDs(List.of(paymentPosition.getIupd()))
                                               .build();
 
-        for(ConstraintViolation<PaymentPosition> v : violations) {
-            logger.log(Level.INFO, "Payment position " + paymentPosition.getIupd() + " is not valid, violation: " + v.getMessage());
+        for(String v : violations) {
+            logger.log(Level.INFO, "Payment position " + paymentPosition.getIupd() + " is not valid, violation: " + v);
         }
 
         return responseEntry;
@@ -0,0 +1,19 @@
+package it.gov.pagopa.gpd.upload.util;
+
+import com.azure.core.http.HttpClient;
+
+/**
+ * HTTP client shared by the Azure Storage SDK clients (blob and queue): a single connection pool and event loop
+ * per process instead of one per client.
+ */
+public class HttpClientUtils {
+
+    private static final HttpClient SHARED = HttpClient.createDefault();
+
+    private HttpClientUtils() {
+    }
+
+    public static HttpClient getSharedClient() {
+        return SHARED;
+    }
+}
@@ -1,51 +1,95 @@
 package it.gov.pagopa.gpd.upload.util;
 
+import it.gov.pagopa.gpd.upload.repository.UploadLockRepository;
+
 import java.time.Instant;
-import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
 
 /**
- * Case-insensitive, in-memory idempotency tracker with TTL support.
- * NOTE: This works only for single-instance deployments.
+ * Case-insensitive idempotency tracker with TTL support.
+ * The backend is chosen by UPLOAD_LOCK_BACKEND: MEMORY (single instance only) or COSMOS (shared by all the instances).
  */
 public class IdempotencyUploadTracker {
-	
+
 	private IdempotencyUploadTracker() {
 		// Prevent instantiation
 	}
-	
-	// Key -> timestamp of insertion
-    private static final Map<String, Instant> inProgress = new ConcurrentHashMap<>();
+
+    private static final String UPLOAD_LOCK_BACKEND =
+            System.getenv("UPLOAD_LOCK_BACKEND") != null ? System.getenv("UPLOAD_LOCK_BACKEND") : "MEMORY";
 
     // Timeout duration in seconds (e.g., 3600s = 1 hour)
-    private static final long TIMEOUT_SECONDS = 3600;
+    public static final long TIMEOUT_SECONDS =
+            System.getenv("UPLOAD_LOCK_TTL_SECONDS") != null ? Long.parseLong(System.getenv("UPLOAD_LOCK_TTL_SECONDS")) : 3600;
+
+    // renew is called for every segment and chunk: the lease is extended at most once per interval on each instance
+    private static final long RENEW_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(
+            System.getenv("UPLOAD_LOCK_RENEW_INTERVAL_SECONDS") != null ? Long.parseLong(System.getenv("UPLOAD_LOCK_RENEW_INTERVAL_SECONDS")) : TIMEOUT_SECONDS / 4);
+
+    private static volatile UploadLockBackend backend;
+    // normalized key -> System.nanoTime() of the last acquisition or renewal made by this instance
+    private static final Map<String, Long> lastRenewals = new ConcurrentHashMap<>();
 
     public static boolean tryLock(String key) {
-        cleanupExpiredKeys(); // remove old entries
-        return inProgress.putIfAbsent(normalize(key), Instant.now()) == null;
+        boolean locked = getBackend().tryLock(key);
+        if (locked)
+            lastRenewals.put(normalize(key), System.nanoTime());
+        return locked;
     }
 
     public static void unlock(String key) {
-        inProgress.remove(normalize(key));
+        lastRenewals.remove(normalize(key));
+        getBackend().unlock(key);
+    }
+
+    // called while the upload makes progress, so a long upload doesn't lose its lock
+    public static void renew(String key) {
+        long now = System.nanoTime();
+        boolean[] due = {false};
+        lastRenewals.compute(normalize(key), (k, last) -> {
+            if (last != null && now - last < RENEW_INTERVAL_NANOS)
+                return last;
+            due[0] = true;
+            return now;
+        });
+        if (!due[0])
+            return;
+        // uploads completed on other instances leave their entry here
+        lastRenewals.values().removeIf(last -> now - last > TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS));
+        getBackend().renew(key);
     }
 
-    private static String normalize(String key) {
+    // identity of a lock: the subject is passed as is to the backends, which may need its original case (e.g. the fiscal code partition)
+    public static String normalize(String key) {
         return key == null ? null : key.toLowerCase();
     }
 
-    private static void cleanupExpiredKeys() {
-        Instant now = Instant.now();
-        Iterator<Map.Entry<String, Instant>> iterator = inProgress.entrySet().iterator();
-        while (iterator.hasNext()) {
-            Map.Entry<String, Instant> entry = iterator.next();
-            if (now.minusSeconds(TIMEOUT_SECONDS).isAfter(entry.getValue())) {
-                iterator.remove();
+    private static UploadLockBackend getBackend() {
+        if (backend == null) {
+            synchronized (IdempotencyUploadTracker.class) {
+                if (backend == null) {
+                    backend = "COSMOS".equalsIgnoreCase(UPLOAD_LOCK_BACKEND) ?
+                                      UploadLockRepository.getInstance(Logger.getLogger(IdempotencyUploadTracker.class.getName())) :
+                                      new InMemoryUploadLock(TIMEOUT_SECONDS);
+                }
             }
         }
+        return backend;
+    }
+
+    // metrics, available for the MEMORY backend only (the COSMOS locks are documents of the Status container)
+    public static int getHeldLocks() {
+        return getBackend() instanceof InMemoryUploadLock memory ? memory.getHeld() : 0;
     }
-    
+
+    public static long getExpirations() {
+        return getBackend() instanceof InMemoryUploadLock memory ? memory.getExpirations() : 0;
+    }
+
     public static Map<String, Instant> getInProgress() {
-        return Map.copyOf(inProgress); // non-editable copy
+        return getBackend() instanceof InMemoryUploadLock memory ? memory.getInProgress() : Map.of();
     }
 }
@@ -0,0 +1,156 @@
+package it.gov.pagopa.gpd.upload.util;
+
+import java.time.Instant;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedTransferQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * In-memory lock backend with TTL support.
+ * Leases are handed over to a daemon sweeper that orders them by deadline, so tryLock, renew and unlock only touch
+ * their own key and an unbounded queue whatever the number of locks held: an expired lease not yet swept is simply taken over.
+ * NOTE: This works only for single-instance deployments.
+ */
+public class InMemoryUploadLock implements UploadLockBackend {
+
+    // Key -> current lease
+    private final Map<String, Lease> inProgress = new ConcurrentHashMap<>();
+    // leases locked or unlocked since the last sweep, the sweeper orders them
+    private final LinkedTransferQueue<Handoff> handoffs = new LinkedTransferQueue<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private final long timeoutNanos;
+
+    public InMemoryUploadLock(long timeoutSeconds) {
+        this.timeoutNanos = TimeUnit.SECONDS.toNanos(timeoutSeconds);
+        Thread sweeper = new Thread(this::sweep, "upload-lock-sweeper");
+        sweeper.setDaemon(true);
+        sweeper.start();
+    }
+
+    @Override
+    public boolean tryLock(String subject) {
+        String key = IdempotencyUploadTracker.normalize(subject);
+        Lease lease = new Lease(key, sequence.incrementAndGet(), System.nanoTime() + timeoutNanos);
+        Lease current = inProgress.compute(key, (k, held) -> {
+            if (held == null)
+                return lease;
+            if (held.isExpired()) {
+                expirations.incrementAndGet();
+                return lease;
+            }
+            return held;
+        });
+        if (current != lease)
+            return false;
+        handoffs.add(new Handoff(lease, false));
+        return true;
+    }
+
+    @Override
+    public void unlock(String subject) {
+        Lease lease = inProgress.remove(IdempotencyUploadTracker.normalize(subject));
+        if (lease != null)
+            handoffs.add(new Handoff(lease, true)); // its entry is removed by the sweeper
+    }
+
+    @Override
+    public void renew(String subject) {
+        // the entry is left as is: the sweeper schedules it again at the new deadline when it comes due
+        inProgress.computeIfPresent(IdempotencyUploadTracker.normalize(subject), (k, held) -> held.extend(System.nanoTime() + timeoutNanos));
+    }
+
+    private void sweep() {
+        // owned by the sweeper thread
+        TreeSet<Lease> scheduled = new TreeSet<>();
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Lease first = scheduled.isEmpty() ? null : scheduled.first();
+                long wait = first == null ? Long.MAX_VALUE : first.scheduledAt - System.nanoTime();
+                Handoff handoff = wait > 0 ? handoffs.poll(wait, TimeUnit.NANOSECONDS) : handoffs.poll();
+                if (handoff != null) {
+                    if (handoff.unlocked) {
+                        handoff.lease.released = true; // an unlock handed over before its lock is not scheduled
+                        scheduled.remove(handoff.lease);
+                    } else if (!handoff.lease.released) {
+                        schedule(scheduled, handoff.lease);
+                    }
+                    continue;
+                }
+                if (first == null || first.scheduledAt - System.nanoTime() > 0)
+                    continue;
+                scheduled.pollFirst();
+                // atomic with tryLock/renew on the same key
+                inProgress.computeIfPresent(first.key, (k, held) -> {
+                    if (held != first)
+                        return held; // taken over: stale entry
+                    if (!held.isExpired()) {
+                        schedule(scheduled, held); // renewed in the meantime
+                        return held;
+                    }
+                    expirations.incrementAndGet();
+                    return null;
+                });
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void schedule(TreeSet<Lease> scheduled, Lease lease) {
+        lease.scheduledAt = lease.deadline;
+        scheduled.add(lease);
+    }
+
+    public int getHeld() {
+        return inProgress.size();
+    }
+
+    public long getExpirations() {
+        return expirations.get();
+    }
+
+    public Map<String, Instant> getInProgress() {
+        return inProgress.entrySet().stream()
+                       .collect(Collectors.toUnmodifiableMap(Map.Entry::getKey, entry -> entry.getValue().timestamp)); // non-editable copy
+    }
+
+    private static final class Lease implements Comparable<Lease> {
+        private final String key;
+        private final long id;
+        private volatile long deadline; // System.nanoTime() based
+        private volatile Instant timestamp = Instant.now();
+        // read and written by the sweeper only: the deadline may move forward while the lease is scheduled
+        private long scheduledAt;
+        private boolean released;
+
+        private Lease(String key, long id, long deadline) {
+            this.key = key;
+            this.id = id;
+            this.deadline = deadline;
+        }
+
+        private Lease extend(long deadline) {
+            this.deadline = deadline;
+            this.timestamp = Instant.now();
+            return this;
+        }
+
+        private boolean isExpired() {
+            return deadline - System.nanoTime() <= 0;
+        }
+
+        @Override
+        public int compareTo(Lease other) {
+            int byTime = Long.compare(scheduledAt - other.scheduledAt, 0);
+            return byTime != 0 ? byTime : Long.compare(id, other.id);
+        }
+    }
+
+    private record Handoff(Lease lease, boolean unlocked) {
+    }
+}
@@ -0,0 +1,35 @@
+package it.gov.pagopa.gpd.upload.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * IUPD -> positions of a message, in message order (a duplicated IUPD keeps all its positions).
+ * Immutable once built, so it can be shared by the concurrent one-by-one requests.
+ */
+public class IupdIndex<T> {
+
+    private final Map<String, List<T>> positionsByIUPD;
+
+    public IupdIndex(List<T> positions, Function<T, String> iupd) {
+        this.positionsByIUPD = new HashMap<>(positions.size() * 4 / 3 + 1);
+        for (T position : positions)
+            positionsByIUPD.computeIfAbsent(iupd.apply(position), k -> new ArrayList<>(1)).add(position);
+    }
+
+    public List<T> get(String IUPD) {
+        return positionsByIUPD.getOrDefault(IUPD, List.of());
+    }
+
+    // positions in the order of the given IUPDs
+    public List<T> get(Collection<String> IUPDs) {
+        List<T> positions = new ArrayList<>(IUPDs.size());
+        for (String IUPD : IUPDs)
+            positions.addAll(get(IUPD));
+        return positions;
+    }
+}
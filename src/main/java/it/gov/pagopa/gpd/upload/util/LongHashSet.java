@@ -0,0 +1,97 @@
+package it.gov.pagopa.gpd.upload.util;
+
+/**
+ * Open addressing set of primitive longs: no boxing and no entry objects, 8 bytes per slot.
+ * Not thread-safe.
+ */
+public class LongHashSet {
+    private static final long EMPTY = 0L;
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private long[] slots;
+    private boolean containsEmpty; // EMPTY marks a free slot, so it is tracked apart
+    private int size;
+
+    public LongHashSet(int expectedSize) {
+        slots = new long[capacityFor(expectedSize)];
+    }
+
+    /**
+     * @return true if the value was not in the set
+     */
+    public boolean add(long value) {
+        if (value == EMPTY) {
+            boolean added = !containsEmpty;
+            containsEmpty = true;
+            if (added)
+                size++;
+            return added;
+        }
+        int mask = slots.length - 1;
+        int index = mix(value) & mask;
+        while (slots[index] != EMPTY) {
+            if (slots[index] == value)
+                return false;
+            index = (index + 1) & mask;
+        }
+        slots[index] = value;
+        if (++size > slots.length * LOAD_FACTOR)
+            rehash();
+        return true;
+    }
+
+    public boolean contains(long value) {
+        if (value == EMPTY)
+            return containsEmpty;
+        int mask = slots.length - 1;
+        int index = mix(value) & mask;
+        while (slots[index] != EMPTY) {
+            if (slots[index] == value)
+                return true;
+            index = (index + 1) & mask;
+        }
+        return false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 64-bit FNV-1a hash of a string, used to store strings in the set: with n values
+     * the chance of a collision is about n^2 / 2^65 (less than 1e-7 for a million values)
+     */
+    public static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private void rehash() {
+        long[] old = slots;
+        slots = new long[old.length * 2];
+        size = containsEmpty ? 1 : 0;
+        for (long value : old) {
+            if (value != EMPTY)
+                add(value);
+        }
+    }
+
+    // murmur3 finalizer, spreads the bits used by the mask
+    private static int mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return (int) value;
+    }
+
+    private static int capacityFor(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max((int) (expectedSize / LOAD_FACTOR), 8) - 1) << 1;
+        return Math.max(capacity, 16);
+    }
+}
@@ -13,7 +13,7 @@ public class MapUtils {
                 .submittedItem(status.getUpload().getTotal())
                 .startTime(status.getUpload().getStart())
                 .endTime(status.getUpload().getEnd())
-                .responses(status.getUpload().getResponses())
+                .responses(status.getUpload().mergedResponses())
                 .build();
     }
 
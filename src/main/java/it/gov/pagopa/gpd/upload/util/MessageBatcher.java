@@ -0,0 +1,95 @@
+package it.gov.pagopa.gpd.upload.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Accumulator of the items handled at the same time by concurrent invocations.
+ * The first item of a key opens a batch and makes its caller the leader: it waits the linger, or until the batch
+ * is full, then processes all the items joined in the meantime. The other callers wait for the batch to be processed,
+ * so each invocation returns (and its queue message is deleted) only once its item has been handled.
+ */
+public class MessageBatcher<T> {
+
+    @FunctionalInterface
+    public interface Processor<T> {
+        void process(List<T> items) throws Exception;
+    }
+
+    private final long lingerMs;
+    private final int maxSize;
+    private final Map<String, Batch<T>> open = new ConcurrentHashMap<>();
+
+    public MessageBatcher(long lingerMs, int maxSize) {
+        this.lingerMs = lingerMs;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns when the batch holding the item has been processed
+     * @param size weight of the item, the sum of a batch doesn't exceed maxSize (an item larger than it is processed alone)
+     */
+    public void submit(String key, T item, int size, Processor<T> processor) throws Exception {
+        Batch<T> created = new Batch<>();
+        // items are added under the lock of the key, and the leader removes the batch before reading them
+        Batch<T> batch = open.compute(key, (k, current) -> {
+            if (current != null && current.add(item, size, maxSize))
+                return current;
+            if (current != null)
+                current.full.countDown(); // no room left: processed without waiting the rest of the linger
+            created.add(item, size, maxSize);
+            return created;
+        });
+        if (batch == created)
+            lead(key, batch, processor);
+
+        try {
+            batch.done.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof Exception cause)
+                throw cause;
+            if (e.getCause() instanceof Error cause)
+                throw cause;
+            throw e;
+        }
+    }
+
+    private void lead(String key, Batch<T> batch, Processor<T> processor) {
+        try {
+            batch.full.await(lingerMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        open.remove(key, batch); // closed: a new item opens a new batch
+        try {
+            processor.process(batch.items);
+            batch.done.complete(null);
+        } catch (Throwable e) {
+            // the waiting callers must be released whatever happens
+            batch.done.completeExceptionally(e);
+        }
+    }
+
+    private static final class Batch<T> {
+        private final List<T> items = new ArrayList<>();
+        private final CountDownLatch full = new CountDownLatch(1);
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+        private int size;
+
+        private boolean add(T item, int itemSize, int maxSize) {
+            if (!items.isEmpty() && size + itemSize > maxSize)
+                return false;
+            items.add(item);
+            size += itemSize;
+            if (size >= maxSize)
+                full.countDown(); // exactly full: nothing else can join
+            return true;
+        }
+    }
+}
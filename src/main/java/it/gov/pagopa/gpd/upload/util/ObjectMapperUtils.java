@@ -0,0 +1,67 @@
+package it.gov.pagopa.gpd.upload.util;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import it.gov.pagopa.gpd.upload.model.CRUDOperation;
+import it.gov.pagopa.gpd.upload.model.QueueMessage;
+import it.gov.pagopa.gpd.upload.model.ResponseGPD;
+import it.gov.pagopa.gpd.upload.model.UploadReport;
+import it.gov.pagopa.gpd.upload.model.pd.MultipleIUPD;
+import it.gov.pagopa.gpd.upload.model.pd.PaymentPosition;
+import it.gov.pagopa.gpd.upload.model.pd.PaymentPositions;
+
+/**
+ * Process-wide JSON codec.
+ * The mapper is configured once and only immutable, thread-safe ObjectReader/ObjectWriter are exposed:
+ * they are created eagerly, so the root (de)serializers are resolved and cached at class loading
+ * instead of on every invocation.
+ */
+public class ObjectMapperUtils {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+                                                       .registerModule(new JavaTimeModule())
+                                                       .disable(SerializationFeature.INDENT_OUTPUT); // remove useless whitespaces from message
+
+    // binary formats of the compact queue codecs, same configuration as the JSON mapper
+    private static final ObjectMapper SMILE_MAPPER = new ObjectMapper(SmileFactory.builder()
+                                                                              // positions repeat fiscal code, company name, category...
+                                                                              .enable(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES)
+                                                                              .build())
+                                                             .registerModule(new JavaTimeModule());
+    private static final ObjectMapper CBOR_MAPPER = new ObjectMapper(new CBORFactory()).registerModule(new JavaTimeModule());
+
+    public static final ObjectReader PAYMENT_POSITION_READER = MAPPER.readerFor(PaymentPosition.class);
+    public static final ObjectReader CRUD_OPERATION_READER = MAPPER.readerFor(CRUDOperation.class);
+    public static final ObjectReader STRING_READER = MAPPER.readerFor(String.class);
+    public static final ObjectReader QUEUE_MESSAGE_READER = MAPPER.readerFor(QueueMessage.class);
+    public static final ObjectReader RESPONSE_GPD_READER = MAPPER.readerFor(ResponseGPD.class);
+    public static final ObjectReader TREE_READER = MAPPER.reader();
+
+    public static final ObjectReader QUEUE_MESSAGE_SMILE_READER = SMILE_MAPPER.readerFor(QueueMessage.class);
+    public static final ObjectReader QUEUE_MESSAGE_CBOR_READER = CBOR_MAPPER.readerFor(QueueMessage.class);
+
+    public static final ObjectWriter QUEUE_MESSAGE_WRITER = MAPPER.writerFor(QueueMessage.class);
+    public static final ObjectWriter QUEUE_MESSAGE_SMILE_WRITER = SMILE_MAPPER.writerFor(QueueMessage.class);
+    public static final ObjectWriter QUEUE_MESSAGE_CBOR_WRITER = CBOR_MAPPER.writerFor(QueueMessage.class);
+    public static final ObjectWriter PAYMENT_POSITION_WRITER = MAPPER.writerFor(PaymentPosition.class);
+    public static final ObjectWriter PAYMENT_POSITIONS_WRITER = MAPPER.writerFor(PaymentPositions.class);
+    public static final ObjectWriter MULTIPLE_IUPD_WRITER = MAPPER.writerFor(MultipleIUPD.class);
+    public static final ObjectWriter UPLOAD_REPORT_WRITER = MAPPER.writerFor(UploadReport.class)
+                                                                  .with(SerializationFeature.INDENT_OUTPUT)
+                                                                  .without(JsonGenerator.Feature.AUTO_CLOSE_TARGET); // the blob stream is closed by the caller
+
+    private ObjectMapperUtils() {
+    }
+
+    public static JsonFactory getFactory() {
+        return MAPPER.getFactory();
+    }
+}
@@ -0,0 +1,92 @@
+package it.gov.pagopa.gpd.upload.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Stage of a pipeline: a thread consuming the items handed over through a bounded queue.
+ * A full queue blocks the producer, so a slow stage holds back the previous ones instead of buffering the upload.
+ * Stages of the same pipeline share the failure: after the first one the remaining items are drained and discarded.
+ */
+public class PipelineStage<T> {
+
+    @FunctionalInterface
+    public interface Processor<T> {
+        void process(T item) throws Exception;
+    }
+
+    private static final Object END = new Object();
+    // bound of each wait on a full queue, to recheck the failure: an aborted stage doesn't take its items anymore
+    private static final long POLL_MS = 100;
+
+    private final BlockingQueue<Object> queue;
+    private final Processor<T> processor;
+    private final AtomicReference<Exception> failure;
+    private final Thread thread;
+
+    public PipelineStage(String name, int capacity, Processor<T> processor, AtomicReference<Exception> failure) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.processor = processor;
+        this.failure = failure;
+        this.thread = new Thread(this::consume, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Hands over an item, waiting while the queue is full: the item is discarded once the pipeline has failed
+     */
+    public void submit(T item) throws InterruptedException {
+        while (failure.get() == null) {
+            if (queue.offer(item, POLL_MS, TimeUnit.MILLISECONDS))
+                return;
+        }
+    }
+
+    /**
+     * Signals the end of the items and waits until the stage has processed all of them
+     */
+    public void finish() throws InterruptedException {
+        // an aborted stage may have ended with a full queue: nobody takes the END
+        while (thread.isAlive()) {
+            if (queue.offer(END, POLL_MS, TimeUnit.MILLISECONDS))
+                break;
+        }
+        thread.join();
+    }
+
+    /**
+     * Stops the stage without waiting for it: the remaining items are discarded and the thread ends as soon as possible
+     */
+    public void abort(Exception cause) {
+        failure.compareAndSet(null, cause);
+        thread.interrupt();
+        queue.clear(); // a producer waiting on the full queue is released
+    }
+
+    @SuppressWarnings("unchecked")
+    private void consume() {
+        try {
+            Object item;
+            while ((item = queue.take()) != END) {
+                if (failure.get() != null)
+                    continue;
+                try {
+                    processor.process((T) item);
+                } catch (Exception e) {
+                    failure.compareAndSet(null, e);
+                    if (e instanceof InterruptedException)
+                        Thread.currentThread().interrupt(); // aborted: the next take ends the thread
+                } catch (Error e) {
+                    // the thread must keep draining, or the producer may block on a full queue
+                    failure.compareAndSet(null, new IllegalStateException(e));
+                }
+            }
+        } catch (InterruptedException e) {
+            failure.compareAndSet(null, e);
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package it.gov.pagopa.gpd.upload.util;
+
+import com.microsoft.azure.functions.HttpStatus;
+import it.gov.pagopa.gpd.upload.entity.ResponseEntry;
+import it.gov.pagopa.gpd.upload.model.pd.PaymentOption;
+import it.gov.pagopa.gpd.upload.model.pd.PaymentPosition;
+import it.gov.pagopa.gpd.upload.model.pd.Transfer;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Business rules checked locally before enqueuing, on positions already valid for Bean Validation:
+ * positions GPD would reject anyway go straight to the status as 400, instead of failing a bulk request
+ * and being retried one by one.
+ * An instance spans a whole upload, so duplicates are detected across segments.
+ */
+public class PreflightValidator {
+
+    public static final boolean ENABLED = System.getenv("PREFLIGHT_ENABLED") == null || Boolean.parseBoolean(System.getenv("PREFLIGHT_ENABLED"));
+    // due dates are local date-times of GPD, while the function host runs in UTC
+    private static final ZoneId GPD_ZONE = ZoneId.of("Europe/Rome");
+
+    private final LongHashSet iupds = new LongHashSet(1024);
+    private final LongHashSet iuvs = new LongHashSet(1024);
+
+    /**
+     * Removes the rejected positions from the list and returns an entry for each of them, in input order
+     */
+    public List<ResponseEntry> removeRejected(Logger logger, List<PaymentPosition> paymentPositions) {
+        return removeRejected(logger, paymentPositions, LocalDateTime.now(GPD_ZONE));
+    }
+
+    List<ResponseEntry> removeRejected(Logger logger, List<PaymentPosition> paymentPositions, LocalDateTime now) {
+        List<ResponseEntry> entries = new ArrayList<>();
+        List<PaymentPosition> accepted = new ArrayList<>(paymentPositions.size());
+        for (PaymentPosition paymentPosition : paymentPositions) {
+            String violation = check(paymentPosition, now);
+            if (violation == null) {
+                accepted.add(paymentPosition);
+            } else {
+                logger.log(Level.INFO, "Payment position " + paymentPosition.getIupd() + " is rejected by pre-flight, violation: " + violation);
+                entries.add(ResponseEntry.builder()
+                                    .statusCode(HttpStatus.BAD_REQUEST.value())
+                                    .statusMessage(violation)
+                                    .requestIDs(List.of(paymentPosition.getIupd()))
+                                    .build());
+            }
+        }
+
+        if (!entries.isEmpty()) {
+            paymentPositions.clear();
+            paymentPositions.addAll(accepted);
+        }
+        return entries;
+    }
+
+    // returns the first violation, null if the position is accepted
+    private String check(PaymentPosition paymentPosition, LocalDateTime now) {
+        String violation = null;
+        if (!iupds.add(LongHashSet.hash(paymentPosition.getIupd())))
+            violation = "iupd is duplicated in the upload";
+
+        if (paymentPosition.getPaymentOption() == null)
+            return violation;
+        // every IUV is registered, also for rejected positions: a later position reusing it is a duplicate as well
+        for (PaymentOption paymentOption : paymentPosition.getPaymentOption()) {
+            // @Valid skips null elements: rejected here, GPD would reject them anyway
+            if (paymentOption == null) {
+                if (violation == null)
+                    violation = "payment option must not be null";
+                continue;
+            }
+            if (!iuvs.add(LongHashSet.hash(paymentOption.getIuv())) && violation == null)
+                violation = "iuv " + paymentOption.getIuv() + " is duplicated in the upload";
+            if (violation == null)
+                violation = check(paymentOption, now);
+        }
+        return violation;
+    }
+
+    private String check(PaymentOption paymentOption, LocalDateTime now) {
+        if (paymentOption.getDueDate().isBefore(now))
+            return "due date of iuv " + paymentOption.getIuv() + " is in the past";
+
+        List<Transfer> transfers = paymentOption.getTransfer();
+        if (transfers == null || transfers.isEmpty())
+            return null;
+        long sum = 0;
+        for (Transfer transfer : transfers) {
+            if (transfer == null)
+                return "transfer of iuv " + paymentOption.getIuv() + " must not be null";
+            if (transfer.getAmount() != null)
+                sum += transfer.getAmount();
+            if (transfer.getIban() != null && !isValidIban(transfer.getIban()))
+                return "iban of transfer " + transfer.getIdTransfer() + " is not valid";
+            if (transfer.getPostalIban() != null && !isValidIban(transfer.getPostalIban()))
+                return "postal iban of transfer " + transfer.getIdTransfer() + " is not valid";
+        }
+        if (sum != paymentOption.getAmount())
+            return "sum of transfer amounts of iuv " + paymentOption.getIuv() + " doesn't match the payment option amount";
+        return null;
+    }
+
+    /**
+     * ISO 13616 check: country code and check digits moved to the end, letters as numbers (A = 10), mod 97 must be 1
+     */
+    public static boolean isValidIban(String iban) {
+        int length = iban.length();
+        if (length < 15 || length > 34 || !isLetter(iban.charAt(0)) || !isLetter(iban.charAt(1)))
+            return false;
+        int remainder = 0;
+        for (int i = 0; i < length; i++) {
+            char c = iban.charAt((i + 4) % length);
+            if (c >= '0' && c <= '9')
+                remainder = (remainder * 10 + (c - '0')) % 97;
+            else if (isLetter(c))
+                remainder = (remainder * 100 + (c - 'A' + 10)) % 97;
+            else
+                return false;
+        }
+        return remainder == 1;
+    }
+
+    private static boolean isLetter(char c) {
+        return c >= 'A' && c <= 'Z';
+    }
+}
@@ -0,0 +1,100 @@
+package it.gov.pagopa.gpd.upload.util;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import it.gov.pagopa.gpd.upload.model.QueueMessage;
+import it.gov.pagopa.gpd.upload.model.enumeration.QueueCodec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Encoding of the queue message payload, selected per deployment by QUEUE_CODEC.
+ * JSON is the plain message, as before. The compact codecs are sent as a binary frame: a NUL byte (never the first of
+ * a JSON message), the ordinal of the codec and the encoded message. The queue base64-encodes the frame once, as it does
+ * with the JSON messages. The tagged envelopes {"codec":"GZIP","data":"<base64>"} of the previous versions are still read.
+ * The consumer decodes all of them, so it must be deployed before the codec is switched.
+ */
+public class QueueMessageCodec {
+
+    public static final QueueCodec CODEC = System.getenv("QUEUE_CODEC") != null ? QueueCodec.valueOf(System.getenv("QUEUE_CODEC")) : QueueCodec.JSON;
+    private static final String ENVELOPE_PREFIX = "{\"codec\":\"";
+    private static final String DATA_FIELD = "data";
+    private static final byte FRAME_MARKER = 0;
+    private static final int FRAME_HEADER = 2;
+
+    private QueueMessageCodec() {
+    }
+
+    public static byte[] encode(QueueMessage queueMessage, QueueCodec codec) throws JsonProcessingException {
+        byte[] data = switch (codec) {
+            case JSON -> null;
+            case GZIP -> gzip(ObjectMapperUtils.QUEUE_MESSAGE_WRITER.writeValueAsBytes(queueMessage));
+            case SMILE -> ObjectMapperUtils.QUEUE_MESSAGE_SMILE_WRITER.writeValueAsBytes(queueMessage);
+            case CBOR -> ObjectMapperUtils.QUEUE_MESSAGE_CBOR_WRITER.writeValueAsBytes(queueMessage);
+        };
+        if (data == null)
+            return ObjectMapperUtils.QUEUE_MESSAGE_WRITER.writeValueAsBytes(queueMessage);
+        byte[] frame = new byte[FRAME_HEADER + data.length];
+        frame[0] = FRAME_MARKER;
+        frame[1] = (byte) codec.ordinal(); // new codecs are appended to QueueCodec
+        System.arraycopy(data, 0, frame, FRAME_HEADER, data.length);
+        return frame;
+    }
+
+    public static QueueMessage decode(byte[] message) throws IOException {
+        return decode(message, false);
+    }
+
+    /**
+     * @param raw if true the positions of a JSON (or gzip JSON) message are read as fragments, see RawMessageReader
+     */
+    public static QueueMessage decode(byte[] message, boolean raw) throws IOException {
+        if (message.length < FRAME_HEADER || message[0] != FRAME_MARKER)
+            return decode(new String(message, StandardCharsets.UTF_8), raw); // JSON or envelope
+        return decode(QueueCodec.values()[message[1]], message, FRAME_HEADER, raw);
+    }
+
+    public static QueueMessage decode(String message) throws IOException {
+        return decode(message, false);
+    }
+
+    public static QueueMessage decode(String message, boolean raw) throws IOException {
+        if (!message.startsWith(ENVELOPE_PREFIX))
+            return raw ? RawMessageReader.read(message) : ObjectMapperUtils.QUEUE_MESSAGE_READER.readValue(message);
+
+        JsonNode envelope = ObjectMapperUtils.TREE_READER.readTree(message);
+        QueueCodec codec = QueueCodec.valueOf(envelope.get("codec").asText());
+        return decode(codec, envelope.get(DATA_FIELD).binaryValue(), 0, raw);
+    }
+
+    private static QueueMessage decode(QueueCodec codec, byte[] data, int offset, boolean raw) throws IOException {
+        int length = data.length - offset;
+        return switch (codec) {
+            case JSON -> raw ? RawMessageReader.read(new String(data, offset, length, StandardCharsets.UTF_8)) : ObjectMapperUtils.QUEUE_MESSAGE_READER.readValue(data, offset, length);
+            case GZIP -> {
+                try (InputStream inputStream = new GZIPInputStream(new ByteArrayInputStream(data, offset, length))) {
+                    yield raw ? RawMessageReader.read(new String(inputStream.readAllBytes(), StandardCharsets.UTF_8)) : ObjectMapperUtils.QUEUE_MESSAGE_READER.readValue(inputStream);
+                }
+            }
+            case SMILE -> ObjectMapperUtils.QUEUE_MESSAGE_SMILE_READER.readValue(data, offset, length);
+            case CBOR -> ObjectMapperUtils.QUEUE_MESSAGE_CBOR_READER.readValue(data, offset, length);
+        };
+    }
+
+    private static byte[] gzip(byte[] data) {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(data.length / 4);
+        try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(outputStream)) {
+            gzipOutputStream.write(data);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // not thrown by an in-memory stream
+        }
+        return outputStream.toByteArray();
+    }
+}
@@ -0,0 +1,68 @@
+package it.gov.pagopa.gpd.upload.util;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import it.gov.pagopa.gpd.upload.model.QueueMessage;
+import it.gov.pagopa.gpd.upload.model.pd.RawPaymentPosition;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads a queue message without binding the payment positions: each one is sliced out of the message
+ * by the offsets of its braces, and only its iupd is read while the parser skips the rest of it.
+ * The other fields are small and bound to the QueueMessage as usual.
+ */
+public class RawMessageReader {
+
+    private static final String POSITIONS_FIELD = "paymentPositions";
+    private static final String IUPD_FIELD = "iupd";
+
+    private RawMessageReader() {
+    }
+
+    public static QueueMessage read(String message) throws IOException {
+        ObjectNode header = JsonNodeFactory.instance.objectNode();
+        List<RawPaymentPosition> positions = null;
+        // parsing a String, the offsets of the locations are char offsets
+        try (JsonParser parser = ObjectMapperUtils.getFactory().createParser(message)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT)
+                throw new JsonParseException(parser, "Queue message is not a JSON object");
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                if (parser.nextToken() == JsonToken.START_ARRAY && POSITIONS_FIELD.equals(field))
+                    positions = readPositions(parser, message);
+                else
+                    header.set(field, ObjectMapperUtils.TREE_READER.readTree(parser));
+            }
+        }
+        QueueMessage queueMessage = ObjectMapperUtils.QUEUE_MESSAGE_READER.readValue(header);
+        queueMessage.setRawPaymentPositions(positions);
+        return queueMessage;
+    }
+
+    private static List<RawPaymentPosition> readPositions(JsonParser parser, String message) throws IOException {
+        List<RawPaymentPosition> positions = new ArrayList<>();
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+            if (token != JsonToken.START_OBJECT)
+                throw new JsonParseException(parser, "Payment position is not a JSON object");
+            int start = (int) parser.currentTokenLocation().getCharOffset();
+            String iupd = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                if (parser.nextToken() == JsonToken.VALUE_STRING && IUPD_FIELD.equals(field))
+                    iupd = parser.getText();
+                else
+                    parser.skipChildren();
+            }
+            int end = (int) parser.currentLocation().getCharOffset(); // past the closing brace
+            positions.add(new RawPaymentPosition(iupd, message.substring(start, end)));
+        }
+        return positions;
+    }
+}
@@ -0,0 +1,183 @@
+package it.gov.pagopa.gpd.upload.util;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectReader;
+import it.gov.pagopa.gpd.upload.exception.AppException;
+import it.gov.pagopa.gpd.upload.model.CRUDOperation;
+import it.gov.pagopa.gpd.upload.model.UploadInput;
+import it.gov.pagopa.gpd.upload.model.pd.PaymentPosition;
+import lombok.Getter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming reader of the upload input file.
+ * The blob is walked token by token with a Jackson JsonParser, so only one segment of
+ * paymentPositions (or paymentPositionIUPDs) is bound to objects at a time, whatever the file size.
+ */
+public class UploadInputReader {
+    private static final String OPERATION = "operation";
+    private static final String PAYMENT_POSITIONS = "paymentPositions";
+    private static final String PAYMENT_POSITION_IUPDS = "paymentPositionIUPDs";
+    private static final int STOPPED = -2;
+
+
+    /**
+     * Consumer of a segment of the input, returns false to stop reading
+     */
+    @FunctionalInterface
+    public interface SegmentHandler<T> {
+        boolean accept(CRUDOperation operation, List<T> segment) throws AppException;
+    }
+
+    /**
+     * Summary of the input: operation and size of the lists read so far
+     */
+    @Getter
+    public static class Summary {
+        private CRUDOperation operation;
+        private int paymentPositions = -1; // -1 if the list is missing
+        private int paymentPositionIUPDs = -1;
+        private boolean completed; // the whole input has been read
+
+        public boolean validOneOf() {
+            if (operation == null)
+                return false;
+            return UploadInput.builder()
+                           .operation(operation)
+                           .paymentPositions(paymentPositions >= 0 ? List.of() : null)
+                           .paymentPositionIUPDs(paymentPositionIUPDs >= 0 ? List.of() : null)
+                           .build()
+                           .validOneOf();
+        }
+
+        public int size() {
+            return Math.max(Math.max(paymentPositions, paymentPositionIUPDs), 0);
+        }
+    }
+
+    /**
+     * Pass over the input without binding: operation and size of the lists, so that the input can be rejected
+     * before any segment is handed over
+     */
+    public Summary scan(InputStream inputStream) throws IOException {
+        Summary summary = new Summary();
+        try (JsonParser parser = ObjectMapperUtils.getFactory().createParser(inputStream)) {
+            expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken token = parser.nextToken();
+                switch (field) {
+                    case OPERATION -> {
+                        CRUDOperation operation = ObjectMapperUtils.CRUD_OPERATION_READER.readValue(parser);
+                        if (summary.operation == null)
+                            summary.operation = operation;
+                    }
+                    case PAYMENT_POSITIONS -> summary.paymentPositions = count(parser, token);
+                    case PAYMENT_POSITION_IUPDS -> summary.paymentPositionIUPDs = count(parser, token);
+                    default -> throw new JsonParseException(parser, "Unrecognized field \"" + field + "\"");
+                }
+            }
+            expect(parser, parser.currentToken(), JsonToken.END_OBJECT);
+        }
+        summary.completed = true;
+        return summary;
+    }
+
+    /**
+     * Pass over the input of a known operation (see scan): list items are bound and handed over in segments of segmentSize elements.
+     * Reading stops when a handler returns false or a list doesn't match the operation.
+     */
+    public Summary read(InputStream inputStream, CRUDOperation operation, int segmentSize,
+                        SegmentHandler<PaymentPosition> positionHandler,
+                        SegmentHandler<String> iupdHandler) throws IOException, AppException {
+        Summary summary = new Summary();
+        summary.operation = operation;
+        try (JsonParser parser = ObjectMapperUtils.getFactory().createParser(inputStream)) {
+            expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken token = parser.nextToken();
+                switch (field) {
+                    case OPERATION -> parser.skipChildren();
+                    case PAYMENT_POSITIONS -> {
+                        if (operation == CRUDOperation.DELETE) {
+                            summary.paymentPositions = count(parser, token);
+                            if (summary.paymentPositions >= 0) // list not allowed for the operation
+                                return summary;
+                        } else {
+                            summary.paymentPositions = readSegments(parser, token, operation, segmentSize, ObjectMapperUtils.PAYMENT_POSITION_READER, positionHandler);
+                            if (summary.paymentPositions == STOPPED)
+                                return summary;
+                        }
+                    }
+                    case PAYMENT_POSITION_IUPDS -> {
+                        if (operation != CRUDOperation.DELETE) {
+                            summary.paymentPositionIUPDs = count(parser, token);
+                            if (summary.paymentPositionIUPDs >= 0) // list not allowed for the operation
+                                return summary;
+                        } else {
+                            summary.paymentPositionIUPDs = readSegments(parser, token, operation, segmentSize, ObjectMapperUtils.STRING_READER, iupdHandler);
+                            if (summary.paymentPositionIUPDs == STOPPED)
+                                return summary;
+                        }
+                    }
+                    default -> throw new JsonParseException(parser, "Unrecognized field \"" + field + "\"");
+                }
+            }
+            expect(parser, parser.currentToken(), JsonToken.END_OBJECT);
+        }
+        summary.completed = true;
+        return summary;
+    }
+
+    // returns the number of items read, -1 if the list is null or STOPPED if the handler stopped the reading
+    private <T> int readSegments(JsonParser parser, JsonToken token, CRUDOperation operation, int segmentSize, ObjectReader reader, SegmentHandler<T> handler) throws IOException, AppException {
+        if (token == JsonToken.VALUE_NULL)
+            return -1;
+        expect(parser, token, JsonToken.START_ARRAY);
+
+        int count = 0;
+        List<T> segment = new ArrayList<>(segmentSize);
+        while (nextElement(parser)) {
+            segment.add(reader.readValue(parser));
+            count++;
+            if (segment.size() == segmentSize) {
+                if (!handler.accept(operation, segment))
+                    return STOPPED;
+                segment = new ArrayList<>(segmentSize);
+            }
+        }
+        return segment.isEmpty() || handler.accept(operation, segment) ? count : STOPPED;
+    }
+
+    private int count(JsonParser parser, JsonToken token) throws IOException {
+        if (token == JsonToken.VALUE_NULL)
+            return -1;
+        expect(parser, token, JsonToken.START_ARRAY);
+
+        int count = 0;
+        while (nextElement(parser)) {
+            parser.skipChildren();
+            count++;
+        }
+        return count;
+    }
+
+    private boolean nextElement(JsonParser parser) throws IOException {
+        JsonToken token = parser.nextToken();
+        if (token == null)
+            throw new JsonParseException(parser, "Unexpected end of input inside array");
+        return token != JsonToken.END_ARRAY;
+    }
+
+    private void expect(JsonParser parser, JsonToken actual, JsonToken expected) throws JsonParseException {
+        if (actual != expected)
+            throw new JsonParseException(parser, "Expected " + expected + " but found " + actual);
+    }
+}
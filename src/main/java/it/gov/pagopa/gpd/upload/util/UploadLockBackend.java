@@ -0,0 +1,16 @@
+package it.gov.pagopa.gpd.upload.util;
+
+/**
+ * Storage of the upload locks used by IdempotencyUploadTracker.
+ * Keys are the subjects as received: backends compare them through IdempotencyUploadTracker.normalize.
+ */
+public interface UploadLockBackend {
+
+    // true if the lock has been acquired, false if it is held and not expired
+    boolean tryLock(String key);
+
+    void unlock(String key);
+
+    // extends the expiration of a held lock
+    void renew(String key);
+}
@@ -0,0 +1,75 @@
+package it.gov.pagopa.gpd.upload.benchmark;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import it.gov.pagopa.gpd.upload.functions.util.TestUtil;
+import it.gov.pagopa.gpd.upload.model.CRUDOperation;
+import it.gov.pagopa.gpd.upload.model.QueueMessage;
+import it.gov.pagopa.gpd.upload.model.enumeration.ServiceType;
+import it.gov.pagopa.gpd.upload.model.pd.PaymentPosition;
+import it.gov.pagopa.gpd.upload.model.pd.PaymentPositions;
+import it.gov.pagopa.gpd.upload.util.ObjectMapperUtils;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the JSON (de)serialization done for every chunk of the ServiceFunction:
+ * a new ObjectMapper per call, as it was done before, against the shared ObjectMapperUtils readers/writers.
+ * Run with main() from the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ObjectMapperBenchmark {
+
+    private String message;
+    private PaymentPositions paymentPositions;
+
+    @Setup
+    public void setup() throws JsonProcessingException {
+        List<PaymentPosition> positions = new ArrayList<>();
+        for (int i = 0; i < 20; i++) // former CHUNK_SIZE of the queue messages
+            positions.add(TestUtil.getMockDebtPosition());
+        paymentPositions = new PaymentPositions(positions);
+        message = ObjectMapperUtils.QUEUE_MESSAGE_WRITER.writeValueAsString(QueueMessage.builder()
+                                                                                    .crudOperation(CRUDOperation.CREATE)
+                                                                                    .uploadKey("key")
+                                                                                    .organizationFiscalCode("77777777777")
+                                                                                    .brokerCode("broker")
+                                                                                    .serviceType(ServiceType.GPD)
+                                                                                    .retryCounter(0)
+                                                                                    .paymentPositions(positions)
+                                                                                    .build());
+    }
+
+    @Benchmark
+    public String perCallMapper() throws JsonProcessingException {
+        ObjectMapper om = new ObjectMapper();
+        om.registerModule(new JavaTimeModule());
+        QueueMessage msg = om.readValue(message, QueueMessage.class);
+
+        ObjectMapper requestMapper = new ObjectMapper();
+        requestMapper.registerModule(new JavaTimeModule());
+        return requestMapper.writeValueAsString(new PaymentPositions(msg.getPaymentPositions()));
+    }
+
+    @Benchmark
+    public String sharedReaderWriter() throws JsonProcessingException {
+        QueueMessage msg = ObjectMapperUtils.QUEUE_MESSAGE_READER.readValue(message);
+        return ObjectMapperUtils.PAYMENT_POSITIONS_WRITER.writeValueAsString(new PaymentPositions(msg.getPaymentPositions()));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(ObjectMapperBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,73 @@
+package it.gov.pagopa.gpd.upload.benchmark;
+
+import it.gov.pagopa.gpd.upload.entity.UpsertMessage;
+import it.gov.pagopa.gpd.upload.functions.util.TestUtil;
+import it.gov.pagopa.gpd.upload.model.QueueMessage;
+import it.gov.pagopa.gpd.upload.model.RequestGPD;
+import it.gov.pagopa.gpd.upload.model.pd.PaymentPosition;
+import it.gov.pagopa.gpd.upload.service.MessageTranslator;
+import it.gov.pagopa.gpd.upload.service.RequestTranslator;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One-by-one fallback of a whole chunk (a SINGLE request per IUPD) and retry of half of it,
+ * over chunk sizes from the plain JSON one to the claim-checked or compressed ones:
+ * the time per position must stay flat as the chunk grows.
+ * Run with main() from the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TranslatorBenchmark {
+
+    @Param({"20", "100", "500", "1000"})
+    private int chunkSize;
+
+    private QueueMessage queueMessage;
+    private List<String> IUPDList;
+    private List<String> retryIUPDList;
+
+    @Setup
+    public void setup() {
+        List<PaymentPosition> paymentPositions = new ArrayList<>(chunkSize);
+        for (int i = 0; i < chunkSize; i++) {
+            PaymentPosition paymentPosition = TestUtil.getMockDebtPosition();
+            paymentPosition.setIupd("IUPD_" + i);
+            paymentPositions.add(paymentPosition);
+        }
+        queueMessage = TestUtil.getCreateQueueMessage().toBuilder().paymentPositions(paymentPositions).build();
+        IUPDList = paymentPositions.stream().map(PaymentPosition::getIupd).toList();
+        retryIUPDList = IUPDList.subList(0, chunkSize / 2);
+    }
+
+    @Benchmark
+    public int oneByOne() {
+        // a new message per invocation, as in ServiceFunction: the index is built once per message
+        UpsertMessage upsertMessage = new UpsertMessage(queueMessage);
+        int length = 0;
+        for (String IUPD : IUPDList)
+            length += RequestTranslator.getInstance().create(upsertMessage, RequestGPD.Mode.SINGLE, Optional.of(IUPD)).getBody().length();
+        return length;
+    }
+
+    @Benchmark
+    public int retry() {
+        UpsertMessage upsertMessage = new UpsertMessage(queueMessage);
+        return MessageTranslator.getInstance().translate(upsertMessage, retryIUPDList).getPaymentPositions().size();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(TranslatorBenchmark.class.getSimpleName()).build()).run();
+    }
+}
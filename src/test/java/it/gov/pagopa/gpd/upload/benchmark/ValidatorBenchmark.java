@@ -0,0 +1,64 @@
+package it.gov.pagopa.gpd.upload.benchmark;
+
+import it.gov.pagopa.gpd.upload.functions.util.TestUtil;
+import it.gov.pagopa.gpd.upload.model.pd.PaymentPosition;
+import it.gov.pagopa.gpd.upload.util.CompiledValidator;
+import jakarta.validation.Validation;
+import jakarta.validation.Validator;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Validation of 100k positions (1% invalid) with the cached Bean Validation engine, as done by GPDValidator,
+ * against the CompiledValidator.
+ * Run with main() from the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ValidatorBenchmark {
+
+    private static final int POSITIONS = 100_000;
+
+    private Validator validator;
+    private List<PaymentPosition> positions;
+
+    @Setup
+    public void setup() {
+        validator = Validation.buildDefaultValidatorFactory().getValidator();
+        positions = new ArrayList<>(POSITIONS);
+        for (int i = 0; i < POSITIONS; i++)
+            positions.add(i % 100 == 0 ? TestUtil.getMockInvalidDebtPosition() : TestUtil.getMockDebtPosition());
+    }
+
+    @Benchmark
+    public int beanValidation() {
+        int invalid = 0;
+        for (PaymentPosition position : positions)
+            if (!validator.validate(position).isEmpty())
+                invalid++;
+        return invalid;
+    }
+
+    @Benchmark
+    public int compiled() {
+        int invalid = 0;
+        for (PaymentPosition position : positions)
+            if (!CompiledValidator.validate(position).isEmpty())
+                invalid++;
+        return invalid;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(ValidatorBenchmark.class.getSimpleName()).build()).run();
+    }
+}
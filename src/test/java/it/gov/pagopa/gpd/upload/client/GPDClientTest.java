@@ -4,6 +4,7 @@ import it.gov.pagopa.gpd.upload.model.ResponseGPD;
 import it.gov.pagopa.gpd.upload.model.RetryStep;
 import it.gov.pagopa.gpd.upload.util.MapUtils;
 import com.microsoft.azure.functions.HttpStatus;
+import org.apache.http.pool.PoolStats;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.MethodSource;
@@ -26,6 +27,17 @@ class GPDClientTest {
         return (ResponseGPD) m.invoke(client, resp);
     }
 
+    @Test
+    void poolStats_sharedAcrossInstances() {
+        GPDClient client = new GPDClient(Logger.getLogger("test"));
+        GPDClient other = new GPDClient(Logger.getLogger("test"));
+
+        PoolStats stats = client.getPoolStats();
+        assertTrue(stats.getMax() > 0);
+        assertEquals(0, stats.getLeased());
+        assertEquals(stats.getMax(), other.getPoolStats().getMax());
+    }
+
     @Test
     void mapResponse_200_usesDefaultDetail() throws Exception {
         Response resp = mock(Response.class);
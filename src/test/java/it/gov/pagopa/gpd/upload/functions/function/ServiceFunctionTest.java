@@ -33,6 +33,7 @@ import org.mockito.junit.jupiter.MockitoExtension;
 
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.function.Function;
 import java.util.logging.Logger;
 
@@ -76,16 +77,17 @@ class ServiceFunctionTest {
         ObjectMapper objectMapper = new ObjectMapper();
         objectMapper.registerModule(new JavaTimeModule());
         objectMapper.disable(SerializationFeature.INDENT_OUTPUT);
-        //doReturn(statusService).when(serviceFunction).getStatusService(any());
+        StatusService statusService = mock(StatusService.class);
+        doReturn(statusService).when(serviceFunction).getStatusService(any());
         doReturn(gpdClient).when(serviceFunction).getGPDClient(context);
-        //doReturn(getOKMockResponseGPD()).when(gpdClient).createDebtPosition(any());
-        //doReturn(getMockStatus()).when(statusService).updateStatusEndTime(any(), any(), any(), any());
-        //doReturn(getMockStatus()).when(statusService).getStatus(any(), any(), any());
-        String message = objectMapper.writeValueAsString(getMockInputMessage(CRUDOperation.CREATE));
+        doReturn(getOKMockResponseGPD()).when(gpdClient).createDebtPosition(any());
+        doReturn(getMockStatus().toBuilder().upload(Upload.builder().current(1).total(10).build()).build()).when(statusService).getStatus(any(), any(), any());
+        QueueMessage message = getMockInputMessage(CRUDOperation.CREATE);
+        message.setPaymentPositions(List.of(getMockDebtPosition()));
         // Run function
-        serviceFunction.run(message, context);
+        serviceFunction.run(objectMapper.writeValueAsBytes(message), context);
         //Assertion
-        assertTrue(true);
+        verify(statusService).appendResponse(any(), eq(message.getOrganizationFiscalCode()), eq(message.getUploadKey()), any(), any());
     }
 
     @Test
@@ -98,18 +100,15 @@ class ServiceFunctionTest {
         ObjectMapper objectMapper = new ObjectMapper();
         objectMapper.registerModule(new JavaTimeModule());
         objectMapper.disable(SerializationFeature.INDENT_OUTPUT);
-        //doReturn(statusService).when(serviceFunction).getStatusService(any());
+        StatusService statusService = mock(StatusService.class);
+        doReturn(statusService).when(serviceFunction).getStatusService(any());
         doReturn(gpdClient).when(serviceFunction).getGPDClient(context);
-        //doReturn(getKOMockResponseGPD()).when(gpdClient).createDebtPosition(any());
-        //doNothing().when(statusService).appendResponses(any(), any(), any(), any());
-        // todo doNothing().when(serviceFunction).retry(any(), any(), any());
-        //doReturn(getMockStatus()).when(statusService).updateStatusEndTime(any(), any(), any(), any());
-        //doReturn(getMockStatus()).when(statusService).getStatus(any(), any(), any());
-        String message = objectMapper.writeValueAsString(getMockInputMessage(CRUDOperation.CREATE));
-        // Run function
-        serviceFunction.run(message, context);
-        //Assertion
-        assertTrue(true);
+        doReturn(getKOMockResponseGPD()).when(gpdClient).createDebtPosition(any());
+        QueueMessage message = getMockInputMessage(CRUDOperation.CREATE);
+        message.setPaymentPositions(List.of(getMockDebtPosition()));
+        // Run function: the retry can't be enqueued without a storage at JUnit test time, the failure reaches the trigger
+        byte[] json = objectMapper.writeValueAsBytes(message);
+        Assertions.assertThrows(IllegalArgumentException.class, () -> serviceFunction.run(json, context));
     }
 
     @Test
@@ -122,16 +121,17 @@ class ServiceFunctionTest {
         ObjectMapper objectMapper = new ObjectMapper();
         objectMapper.registerModule(new JavaTimeModule());
         objectMapper.disable(SerializationFeature.INDENT_OUTPUT);
-        //doReturn(statusService).when(serviceFunction).getStatusService(any());
+        StatusService statusService = mock(StatusService.class);
+        doReturn(statusService).when(serviceFunction).getStatusService(any());
         doReturn(gpdClient).when(serviceFunction).getGPDClient(context);
-        //doReturn(getOKMockResponseGPD()).when(gpdClient).updateDebtPosition(any());
-        //doReturn(getMockStatus()).when(statusService).updateStatusEndTime(any(), any(), any(), any());
-        //doReturn(getMockStatus()).when(statusService).getStatus(any(), any(), any());
-        String message = objectMapper.writeValueAsString(getMockInputMessage(CRUDOperation.UPDATE));
+        doReturn(getOKMockResponseGPD()).when(gpdClient).updateDebtPosition(any());
+        doReturn(getMockStatus().toBuilder().upload(Upload.builder().current(1).total(10).build()).build()).when(statusService).getStatus(any(), any(), any());
+        QueueMessage message = getMockInputMessage(CRUDOperation.UPDATE);
+        message.setPaymentPositions(List.of(getMockDebtPosition()));
         // Run function
-        serviceFunction.run(message, context);
+        serviceFunction.run(objectMapper.writeValueAsBytes(message), context);
         //Assertion
-        assertTrue(true);
+        verify(statusService).appendResponse(any(), eq(message.getOrganizationFiscalCode()), eq(message.getUploadKey()), any(), any());
     }
 
     @Test
@@ -144,18 +144,74 @@ class ServiceFunctionTest {
         ObjectMapper objectMapper = new ObjectMapper();
         objectMapper.registerModule(new JavaTimeModule());
         objectMapper.disable(SerializationFeature.INDENT_OUTPUT);
-        //doReturn(statusService).when(serviceFunction).getStatusService(any());
+        StatusService statusService = mock(StatusService.class);
+        doReturn(statusService).when(serviceFunction).getStatusService(any());
         doReturn(gpdClient).when(serviceFunction).getGPDClient(context);
-        //doReturn(getKOMockResponseGPD()).when(gpdClient).updateDebtPosition(any());
-        //doNothing().when(statusService).appendResponses(any(), any(), any(), any());
-        // todo doNothing().when(serviceFunction).retry(any(), any(), any());
-        //doReturn(getMockStatus()).when(statusService).updateStatusEndTime(any(), any(), any(), any());
-        //doReturn(getMockStatus()).when(statusService).getStatus(any(), any(), any());
-        String message = objectMapper.writeValueAsString(getMockInputMessage(CRUDOperation.UPDATE));
-        // Run function
-        serviceFunction.run(message, context);
-        //Assertion
-        assertTrue(true);
+        doReturn(getKOMockResponseGPD()).when(gpdClient).updateDebtPosition(any());
+        QueueMessage message = getMockInputMessage(CRUDOperation.UPDATE);
+        message.setPaymentPositions(List.of(getMockDebtPosition()));
+        // Run function: the retry can't be enqueued without a storage at JUnit test time, the failure reaches the trigger
+        byte[] json = objectMapper.writeValueAsBytes(message);
+        Assertions.assertThrows(IllegalArgumentException.class, () -> serviceFunction.run(json, context));
+    }
+
+    @Test
+    void runClaimCheckDeletesPayload() throws Exception {
+        Logger logger = Logger.getLogger("gpd-upload-test-logger");
+        when(context.getLogger()).thenReturn(logger);
+        when(context.getInvocationId()).thenReturn("testInvocationId");
+        QueueMessage reference = getMockInputMessage(CRUDOperation.CREATE).toBuilder()
+                                         .paymentPositions(null)
+                                         .payloadBlob("/fiscalCode/staging/key/payload.json")
+                                         .build();
+        ObjectMapper objectMapper = new ObjectMapper();
+        objectMapper.registerModule(new JavaTimeModule());
+        doReturn(getMockInputMessage(CRUDOperation.CREATE)).when(serviceFunction).loadPayload(any(), any());
+        doNothing().when(serviceFunction).processMessage(any(), any());
+        doNothing().when(serviceFunction).deletePayload(any(), any(), any());
+
+        serviceFunction.run(objectMapper.writeValueAsBytes(reference), context);
+
+        verify(serviceFunction).loadPayload(eq(context), any());
+        verify(serviceFunction).deletePayload(context, reference.getBrokerCode(), "/fiscalCode/staging/key/payload.json");
+    }
+
+    @Test
+    void runFailureKeepsPayload() throws Exception {
+        Logger logger = Logger.getLogger("gpd-upload-test-logger");
+        when(context.getLogger()).thenReturn(logger);
+        when(context.getInvocationId()).thenReturn("testInvocationId");
+        QueueMessage reference = getMockInputMessage(CRUDOperation.CREATE).toBuilder()
+                                         .paymentPositions(null)
+                                         .payloadBlob("/fiscalCode/staging/key/payload.json")
+                                         .build();
+        ObjectMapper objectMapper = new ObjectMapper();
+        objectMapper.registerModule(new JavaTimeModule());
+        doReturn(getMockInputMessage(CRUDOperation.CREATE)).when(serviceFunction).loadPayload(any(), any());
+        doThrow(new AppException("failed")).when(serviceFunction).processMessage(any(), any());
+        byte[] json = objectMapper.writeValueAsBytes(reference);
+
+        // rethrown: the message is retried by the queue trigger, with its staged payload
+        Assertions.assertThrows(IllegalStateException.class, () -> serviceFunction.run(json, context));
+        verify(serviceFunction, never()).deletePayload(any(), any(), any());
+    }
+
+    @Test
+    void runMergeMessages() {
+        when(context.getLogger()).thenReturn(mockLogger);
+        QueueMessage first = getMockInputMessage(CRUDOperation.CREATE);
+        first.setPaymentPositions(List.of(getMockDebtPosition()));
+        QueueMessage second = getMockInputMessage(CRUDOperation.CREATE);
+        second.setPaymentPositions(List.of(getMockDebtPosition(), getMockDebtPosition()));
+        Assertions.assertEquals(serviceFunction.getBatchKey(first), serviceFunction.getBatchKey(second));
+        Assertions.assertNotEquals(serviceFunction.getBatchKey(first), serviceFunction.getBatchKey(getMockInputMessage(CRUDOperation.UPDATE)));
+
+        QueueMessage merged = serviceFunction.mergeMessages(context, List.of(first, second));
+
+        // one GPD request with the positions of both messages
+        Assertions.assertEquals(3, merged.getPaymentPositions().size());
+        Assertions.assertEquals(3, serviceFunction.countPositions(merged));
+        Assertions.assertEquals(first.getUploadKey(), merged.getUploadKey());
     }
 
     @Test
@@ -172,8 +228,11 @@ class ServiceFunctionTest {
                                                 .responses(new ArrayList<>())
                                                 .build())
                                 .build();
+        doReturn(getMockResponseEntries()).when(serviceFunction).getShardResponses(mockLogger, "invocationId", "key", status);
         // BlobRepository mocked false by default
-        Assertions.assertFalse(serviceFunction.generateReport(mockLogger, "key", status));
+        Assertions.assertFalse(serviceFunction.generateReport(mockLogger, "invocationId", "key", status));
+        // shard responses merged in the status
+        Assertions.assertEquals(1, status.getUpload().getResponses().size());
     }
     
     @Test
@@ -189,7 +248,7 @@ class ServiceFunctionTest {
 
         ObjectMapper mapper = new ObjectMapper();
         mapper.registerModule(new JavaTimeModule());
-        String messageJson = mapper.writeValueAsString(message);
+        byte[] messageJson = mapper.writeValueAsBytes(message);
 
         try (
             MockedStatic<IdempotencyUploadTracker> mockedIdempotency = mockStatic(IdempotencyUploadTracker.class);
@@ -225,4 +284,33 @@ class ServiceFunctionTest {
             mockedIdempotency.verify(() -> IdempotencyUploadTracker.unlock(expectedSubject), atLeastOnce());
         }
     }
+
+    @Test
+    void runRefreshesReportOfAbortedUpload() throws Exception {
+        when(context.getLogger()).thenReturn(mockLogger);
+        when(context.getInvocationId()).thenReturn("testInvocationId");
+        QueueMessage message = getMockInputMessage(CRUDOperation.CREATE);
+
+        try (MockedStatic<StatusService> mockedStatusService = mockStatic(StatusService.class)) {
+            StatusService mockStatusService = mock(StatusService.class);
+            // reading of the blob aborted: ended before its total was reached
+            Status aborted = Status.builder()
+                                     .id(message.getUploadKey())
+                                     .fiscalCode(message.getOrganizationFiscalCode())
+                                     .upload(Upload.builder().current(2).total(10).end(LocalDateTime.now()).build())
+                                     .build();
+            mockedStatusService.when(() -> StatusService.getInstance(mockLogger)).thenReturn(mockStatusService);
+            when(mockStatusService.getStatus(any(), any(), any())).thenReturn(aborted);
+            doReturn(mock(CRUDService.class)).when(serviceFunction).getOperationService(any(), any(), any());
+            doReturn(gpdClient).when(serviceFunction).getGPDClient(any());
+            doReturn(mock(UpsertMessage.class)).when(serviceFunction).getPositionMessage(any());
+            doReturn(true).when(serviceFunction).generateReport(any(), any(), any(), any());
+
+            serviceFunction.processMessage(context, message);
+
+            // the late chunk is in the report, the upload is not completed again
+            verify(serviceFunction).generateReport(mockLogger, "testInvocationId", message.getUploadKey(), aborted);
+            verify(serviceFunction, never()).completeUpload(any(), any(), any(), any(), any());
+        }
+    }
 }
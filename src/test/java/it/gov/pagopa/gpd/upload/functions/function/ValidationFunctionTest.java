@@ -9,7 +9,6 @@ import it.gov.pagopa.gpd.upload.model.CRUDOperation;
 import it.gov.pagopa.gpd.upload.model.enumeration.ServiceType;
 import it.gov.pagopa.gpd.upload.service.QueueService;
 import it.gov.pagopa.gpd.upload.service.StatusService;
-import it.gov.pagopa.gpd.upload.util.GPDValidator;
 import it.gov.pagopa.gpd.upload.util.IdempotencyUploadTracker;
 
 import org.junit.jupiter.api.*;
@@ -17,8 +16,12 @@ import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.*;
 import org.mockito.junit.jupiter.MockitoExtension;
 
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -36,16 +39,10 @@ class ValidationFunctionTest {
     @Spy
     ValidationFunction validationFunction;
     private final ExecutionContext context = Mockito.mock(ExecutionContext.class);
-    private static MockedStatic<GPDValidator> positionValidatorMockedStatic;
     private MockedStatic<StatusService> mockedStaticStatusService;
     private MockedStatic<QueueService> mockedStaticQueueService;
     private Logger mockLogger;
 
-    @BeforeAll
-    static void init() {
-        positionValidatorMockedStatic = mockStatic(GPDValidator.class);
-    }
-
     @BeforeEach
     void setUp() {
         mockLogger = mock(Logger.class);
@@ -64,17 +61,31 @@ class ValidationFunctionTest {
     }
 
     @Test
-    void runSizeTooLarge() throws Exception {
+    void runSizeLargeOK() throws Exception {
         // Prepare all mock response
         Logger logger = Logger.getLogger("gpd-upload-test-logger");
         when(context.getLogger()).thenReturn(logger);
         when(context.getInvocationId()).thenReturn("testInvocationId");
-        // Set mock event
+        ObjectMapper objectMapper = new ObjectMapper();
+        objectMapper.registerModule(new JavaTimeModule());
+        Map<String, Object> response = Map.of(BLOB_KEY, (Supplier<InputStream>) BinaryData.fromString(objectMapper.writeValueAsString(getMockCreateInputData()))::toStream, SERVICE_TYPE_KEY, ServiceType.GPD);
+        doReturn(response).when(validationFunction).downloadBlob(any(), any(), any(), any());
+        doReturn(getMockStatus()).when(validationFunction).createStatus(any(), any(), any(), any(), anyInt(), any(ServiceType.class));
+        doNothing().when(validationFunction).startIngestion(any(), any(), any(), anyInt());
+        doReturn(getMockStatus()).when(validationFunction).endIngestion(any(), any(), any());
+        doNothing().when(validationFunction).completeUpload(any(), any(), any(), any(), any());
+        doReturn(List.of("message".getBytes(StandardCharsets.UTF_8))).when(validationFunction).packMessages(any(), any(), any(), any(), any(), any(), any(), any());
+        doReturn(CompletableFuture.completedFuture(null)).when(validationFunction).sendMessage(any(), any());
+        doReturn(true).when(validationFunction).validateSegment(any(), any(), any(), any(), any());
+        IdempotencyUploadTracker.unlock("/containers/broker0001/blobs/ec0001/77777777777f3d1");
+        // Set mock event: files larger than 100 MB are no longer skipped
         String event = getMockBlobCreatedEventSize("10e+8");
         // Run function
         validationFunction.run(event, context);
         //Assertion
-        assertTrue(true);
+        verify(validationFunction).downloadBlob(any(), any(), any(), any());
+        verify(validationFunction).startIngestion(any(), any(), any(), eq(1));
+        IdempotencyUploadTracker.unlock("/containers/broker0001/blobs/ec0001/77777777777f3d1");
     }
 
     @Test
@@ -99,11 +110,15 @@ class ValidationFunctionTest {
         when(context.getInvocationId()).thenReturn("testInvocationId");
         ObjectMapper objectMapper = new ObjectMapper();
         objectMapper.registerModule(new JavaTimeModule());
-        Map<String, Object> response = Map.of(BLOB_KEY, BinaryData.fromString(objectMapper.writeValueAsString(getMockCreateInputData())), SERVICE_TYPE_KEY, ServiceType.GPD);
+        Map<String, Object> response = Map.of(BLOB_KEY, (Supplier<InputStream>) BinaryData.fromString(objectMapper.writeValueAsString(getMockCreateInputData()))::toStream, SERVICE_TYPE_KEY, ServiceType.GPD);
         lenient().doReturn(response).when(validationFunction).downloadBlob(any(), any(), any(), any());
         lenient().doReturn(getMockStatus()).when(validationFunction).createStatus(any(), any(), any(), any(), anyInt(), any(ServiceType.class));
-        lenient().doReturn(true).when(validationFunction).enqueue(any(), any(), any(), any(), any(), any(), any(), any(), any());
-        positionValidatorMockedStatic.when(() -> GPDValidator.validate(any(),any(), any(), any())).thenReturn(true);
+        lenient().doNothing().when(validationFunction).startIngestion(any(), any(), any(), anyInt());
+        lenient().doReturn(getMockStatus()).when(validationFunction).endIngestion(any(), any(), any());
+        lenient().doNothing().when(validationFunction).completeUpload(any(), any(), any(), any(), any());
+        lenient().doReturn(List.of("message".getBytes(StandardCharsets.UTF_8))).when(validationFunction).packMessages(any(), any(), any(), any(), any(), any(), any(), any());
+        lenient().doReturn(CompletableFuture.completedFuture(null)).when(validationFunction).sendMessage(any(), any());
+        lenient().doReturn(true).when(validationFunction).validateSegment(any(), any(), any(), any(), any());
         // Set mock event
         String event = getMockBlobCreatedEvent();
         // Run function
@@ -120,7 +135,7 @@ class ValidationFunctionTest {
         when(context.getInvocationId()).thenReturn("testInvocationId");
         ObjectMapper objectMapper = new ObjectMapper();
         objectMapper.registerModule(new JavaTimeModule());
-        Map<String, Object> response = Map.of(BLOB_KEY, BinaryData.fromString(objectMapper.writeValueAsString(getMockCreateInputData())), SERVICE_TYPE_KEY, ServiceType.GPD);
+        Map<String, Object> response = Map.of(BLOB_KEY, (Supplier<InputStream>) BinaryData.fromString(objectMapper.writeValueAsString(getMockCreateInputData()))::toStream, SERVICE_TYPE_KEY, ServiceType.GPD);
         lenient().doReturn(response).when(validationFunction).downloadBlob(any(), any(), any(), any());
         lenient().doReturn(false).when(validationFunction).validateBlob(any(), any(), any(), any(), any(), any(ServiceType.class));
         // Set mock event
@@ -139,11 +154,15 @@ class ValidationFunctionTest {
         when(context.getInvocationId()).thenReturn("testInvocationId");
         ObjectMapper objectMapper = new ObjectMapper();
         objectMapper.registerModule(new JavaTimeModule());
-        Map<String, Object> response = Map.of(BLOB_KEY, BinaryData.fromString(objectMapper.writeValueAsString(getMockDeleteInputData())), SERVICE_TYPE_KEY, ServiceType.GPD);
+        Map<String, Object> response = Map.of(BLOB_KEY, (Supplier<InputStream>) BinaryData.fromString(objectMapper.writeValueAsString(getMockDeleteInputData()))::toStream, SERVICE_TYPE_KEY, ServiceType.GPD);
         doReturn(response).when(validationFunction).downloadBlob(any(), any(), any(), any());
-        doReturn(getMockStatus()).when(validationFunction).createStatus(any(), any(), any(), any(), anyInt(), any(ServiceType.class));
-        doReturn(true).when(validationFunction).enqueue(any(), any(), any(), any(), any(), any(), any(), any(), any());
-        positionValidatorMockedStatic.when(() -> GPDValidator.validate(any(),any(), any(), any())).thenReturn(true);
+        lenient().doReturn(getMockStatus()).when(validationFunction).createStatus(any(), any(), any(), any(), anyInt(), any(ServiceType.class));
+        lenient().doNothing().when(validationFunction).startIngestion(any(), any(), any(), anyInt());
+        lenient().doReturn(getMockStatus()).when(validationFunction).endIngestion(any(), any(), any());
+        lenient().doNothing().when(validationFunction).completeUpload(any(), any(), any(), any(), any());
+        lenient().doReturn(List.of("message".getBytes(StandardCharsets.UTF_8))).when(validationFunction).packMessages(any(), any(), any(), any(), any(), any(), any(), any());
+        lenient().doReturn(CompletableFuture.completedFuture(null)).when(validationFunction).sendMessage(any(), any());
+        lenient().doReturn(true).when(validationFunction).validateSegment(any(), any(), any(), any(), any());
         // Set mock event
         String event = getMockBlobCreatedEvent();
         // Run function
@@ -158,9 +177,33 @@ class ValidationFunctionTest {
         when(context.getLogger()).thenReturn(mockLogger);
         when(context.getInvocationId()).thenReturn("testInvocationId");
         BinaryData malformedJSONData = BinaryData.fromString("{malformed JSON");
+        doReturn(getMockStatus()).when(validationFunction).createStatus(any(), any(), any(), any(), anyInt(), any(ServiceType.class));
+        doReturn(getMockStatus()).when(validationFunction).endIngestion(any(), any(), any());
+        doNothing().when(validationFunction).completeUpload(any(), any(), any(), any(), any());
 
         // Run function and assert
-        assertFalse(validationFunction.validateBlob(context, "broker", "fc", "key", malformedJSONData, ServiceType.GPD));
+        assertFalse(validationFunction.validateBlob(context, "broker", "fc", "key", malformedJSONData::toStream, ServiceType.GPD));
+        // the upload is completed with a report, not left without one
+        verify(validationFunction).completeUpload(any(), eq("/containers/broker/blobs/fc/key"), eq("fc"), eq("key"), any());
+    }
+
+    @Test
+    void runInvalidOneOfKO() throws Exception {
+        // Prepare all mock response
+        when(context.getLogger()).thenReturn(mockLogger);
+        when(context.getInvocationId()).thenReturn("testInvocationId");
+        BinaryData bothLists = BinaryData.fromString("{\"operation\":\"CREATE\",\"paymentPositions\":[],\"paymentPositionIUPDs\":[\"IUPD-1\"]}");
+        doReturn(getMockStatus()).when(validationFunction).createStatus(any(), any(), any(), any(), anyInt(), any(ServiceType.class));
+        doReturn(getMockStatus()).when(validationFunction).endIngestion(any(), any(), any());
+        doNothing().when(validationFunction).completeUpload(any(), any(), any(), any(), any());
+
+        // Run function and assert
+        assertFalse(validationFunction.validateBlob(context, "broker", "fc", "key", bothLists::toStream, ServiceType.GPD));
+        verify(validationFunction, never()).startIngestion(any(), any(), any(), anyInt());
+        verify(validationFunction, never()).packMessages(any(), any(), any(), any(), any(), any(), any(), any());
+        // the Status is closed anyway, with its report
+        verify(validationFunction).endIngestion(any(), eq("fc"), eq("key"));
+        verify(validationFunction).completeUpload(any(), any(), eq("fc"), eq("key"), any());
     }
 
     @Test
@@ -171,7 +214,7 @@ class ValidationFunctionTest {
 
         // Run function method and assert
         Assertions.assertFalse(
-                validationFunction.enqueue(context, new ObjectMapper(), CRUDOperation.CREATE, new ArrayList<>(), null, "key", "code", "broker-id", ServiceType.GPD)
+                validationFunction.enqueue(context, CRUDOperation.CREATE, new ArrayList<>(), null, "key", "code", "broker-id", ServiceType.GPD)
         );
     }
 
@@ -183,7 +226,7 @@ class ValidationFunctionTest {
 
         // Run function method and assert
         Assertions.assertFalse(
-                validationFunction.enqueue(context, new ObjectMapper(), CRUDOperation.DELETE, null, new ArrayList<>(), "key", "code", "broker-id", ServiceType.GPD)
+                validationFunction.enqueue(context, CRUDOperation.DELETE, null, new ArrayList<>(), "key", "code", "broker-id", ServiceType.GPD)
         );
     }
     
@@ -223,8 +266,70 @@ class ValidationFunctionTest {
         IdempotencyUploadTracker.unlock(lockSubject);
     }
 
-    @AfterAll
-    static void close() {
-        positionValidatorMockedStatic.close();
+    @Test
+    void runHandlesEveryEvent() throws Exception {
+        // Prepare all mock response
+        when(context.getLogger()).thenReturn(mockLogger);
+        lenient().when(context.getInvocationId()).thenReturn("testInvocationId");
+        Map<String, Object> response = Map.of(BLOB_KEY, (Supplier<InputStream>) BinaryData.fromString("{}")::toStream, SERVICE_TYPE_KEY, ServiceType.GPD);
+        doReturn(response).when(validationFunction).downloadBlob(any(), any(), any(), any());
+        doReturn(true).when(validationFunction).validateBlob(any(), any(), any(), any(), any(), any(ServiceType.class));
+
+        String lockSubject = "/containers/demo/blobs/demo/locked";
+        assertTrue(IdempotencyUploadTracker.tryLock(lockSubject));
+        // an empty blob and a locked upload no longer stop the following events
+        String events = "[" + getEvent("1", "/containers/demo/blobs/demo/input/empty.json", 0) + "," +
+                                getEvent("2", "/containers/demo/blobs/demo/input/locked.json", 1024) + "," +
+                                getEvent("3", "/containers/demo/blobs/demo/input/first.json", 1024) + "," +
+                                getEvent("4", "/containers/demo/blobs/demo/input/second.json", 2048) + "]";
+
+        // Run
+        validationFunction.run(events, context);
+
+        verify(validationFunction).downloadBlob(any(), eq("demo"), eq("demo"), eq("first.json"));
+        verify(validationFunction).downloadBlob(any(), eq("demo"), eq("demo"), eq("second.json"));
+        verify(validationFunction, times(2)).downloadBlob(any(), any(), any(), any());
+
+        // Cleanup
+        IdempotencyUploadTracker.unlock(lockSubject);
+        IdempotencyUploadTracker.unlock("/containers/demo/blobs/demo/first");
+        IdempotencyUploadTracker.unlock("/containers/demo/blobs/demo/second");
+    }
+
+    @Test
+    void runRequeuesRejectedEventOnly() throws Exception {
+        // Prepare all mock response
+        when(context.getLogger()).thenReturn(mockLogger);
+        lenient().when(context.getInvocationId()).thenReturn("testInvocationId");
+        Map<String, Object> response = Map.of(BLOB_KEY, (Supplier<InputStream>) BinaryData.fromString("{}")::toStream, SERVICE_TYPE_KEY, ServiceType.GPD);
+        doReturn(response).when(validationFunction).downloadBlob(any(), any(), any(), any());
+        doReturn(true).when(validationFunction).validateBlob(any(), any(), any(), any(), any(), any(ServiceType.class));
+        doReturn(true).when(validationFunction).admit(any(), eq(1024L));
+        doReturn(false).when(validationFunction).admit(any(), eq(2048L));
+        doReturn(true).when(validationFunction).requeueEvent(any(), any());
+
+        String events = "[" + getEvent("1", "/containers/demo/blobs/demo/input/admitted.json", 1024) + "," +
+                                getEvent("2", "/containers/demo/blobs/demo/input/rejected.json", 2048) + "]";
+
+        // Run: the rejection doesn't fail the message
+        assertDoesNotThrow(() -> validationFunction.run(events, context));
+
+        verify(validationFunction).downloadBlob(any(), eq("demo"), eq("demo"), eq("admitted.json"));
+        verify(validationFunction, times(1)).downloadBlob(any(), any(), any(), any());
+        verify(validationFunction).requeueEvent(any(), argThat(event -> event.contains("rejected.json") && !event.contains("admitted.json")));
+
+        // Cleanup
+        IdempotencyUploadTracker.unlock("/containers/demo/blobs/demo/admitted");
+    }
+
+    private String getEvent(String id, String subject, int contentLength) {
+        return "{" +
+                       "\"id\":\"" + id + "\"," +
+                       "\"eventType\":\"Microsoft.Storage.BlobCreated\"," +
+                       "\"subject\":\"" + subject + "\"," +
+                       "\"data\":{\"contentLength\":" + contentLength + "}," +
+                       "\"eventTime\":\"2023-01-01T00:00:00Z\"," +
+                       "\"dataVersion\":\"1.0\"" +
+                       "}";
     }
 }
\ No newline at end of file
@@ -7,20 +7,28 @@ import it.gov.pagopa.gpd.upload.entity.DebtPositionMessage;
 import it.gov.pagopa.gpd.upload.entity.UpsertMessage;
 import it.gov.pagopa.gpd.upload.exception.AppException;
 import it.gov.pagopa.gpd.upload.functions.util.TestUtil;
+import it.gov.pagopa.gpd.upload.model.QueueMessage;
 import it.gov.pagopa.gpd.upload.model.RequestGPD;
 import it.gov.pagopa.gpd.upload.model.ResponseGPD;
 import it.gov.pagopa.gpd.upload.model.RetryStep;
+import it.gov.pagopa.gpd.upload.model.enumeration.FallbackMode;
+import it.gov.pagopa.gpd.upload.model.pd.PaymentPosition;
 import it.gov.pagopa.gpd.upload.service.CRUDService;
 import it.gov.pagopa.gpd.upload.service.StatusService;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mockito;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 import java.util.logging.Logger;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.*;
 
 public class CRUDServiceTest {
@@ -57,6 +65,68 @@ public class CRUDServiceTest {
         assertThrows(IllegalArgumentException.class, operationService::processRequestInBulk);
     }
 
+    @Test
+    void testOneByOneConcurrent() throws AppException, JsonProcessingException {
+        when(context.getLogger()).thenReturn(Logger.getLogger("gpd-upload-test-logger"));
+        List<PaymentPosition> paymentPositions = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            PaymentPosition paymentPosition = TestUtil.getMockDebtPosition();
+            paymentPosition.setIupd("IUPD-" + i);
+            paymentPositions.add(paymentPosition);
+        }
+        QueueMessage queueMessage = TestUtil.getCreateQueueMessage().toBuilder().paymentPositions(paymentPositions).build();
+        // the bulk call fails, each single response echoes the request body
+        Function<RequestGPD, ResponseGPD> method = requestGPD -> requestGPD.getMode() == RequestGPD.Mode.BULK ?
+                doMockedThingsNotFound(requestGPD) :
+                ResponseGPD.builder().detail(requestGPD.getBody()).retryStep(RetryStep.DONE).status(HttpStatus.CREATED.value()).build();
+        Map<String, ResponseGPD> captured = new HashMap<>();
+        StatusService statusService = new EStatusService() {
+            @Override
+            public void appendResponses(String invocationId, String fiscalCode, String key, List<List<String>> chunks, Map<String, ResponseGPD> responses) {
+                captured.putAll(responses);
+            }
+        };
+
+        new CRUDService(context, method, new UpsertMessage(queueMessage), statusService).processRequestInBulk();
+
+        assertEquals(20, captured.size());
+        captured.forEach((iupd, response) -> assertTrue(response.getDetail().contains("\"" + iupd + "\"")));
+    }
+
+    @Test
+    void testBisectIsolatesBadPosition() throws AppException, JsonProcessingException {
+        when(context.getLogger()).thenReturn(Logger.getLogger("gpd-upload-test-logger"));
+        List<PaymentPosition> paymentPositions = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            PaymentPosition paymentPosition = TestUtil.getMockDebtPosition();
+            paymentPosition.setIupd("IUPD-" + i);
+            paymentPositions.add(paymentPosition);
+        }
+        QueueMessage queueMessage = TestUtil.getCreateQueueMessage().toBuilder().paymentPositions(paymentPositions).build();
+        // any request containing IUPD-7 is rejected
+        AtomicInteger calls = new AtomicInteger();
+        Function<RequestGPD, ResponseGPD> method = requestGPD -> {
+            calls.incrementAndGet();
+            return requestGPD.getBody().contains("\"IUPD-7\"") ?
+                    ResponseGPD.builder().detail("bad request").retryStep(RetryStep.ERROR).status(HttpStatus.BAD_REQUEST.value()).build() :
+                    ResponseGPD.builder().detail("created").retryStep(RetryStep.DONE).status(HttpStatus.CREATED.value()).build();
+        };
+        Map<String, ResponseGPD> captured = new HashMap<>();
+        StatusService statusService = new EStatusService() {
+            @Override
+            public void appendResponses(String invocationId, String fiscalCode, String key, List<List<String>> chunks, Map<String, ResponseGPD> responses) {
+                captured.putAll(responses);
+            }
+        };
+
+        new CRUDService(context, method, new UpsertMessage(queueMessage), statusService, FallbackMode.BISECT).processRequestInBulk();
+
+        assertEquals(20, captured.size());
+        assertEquals(HttpStatus.BAD_REQUEST.value(), captured.get("IUPD-7").getStatus());
+        captured.forEach((iupd, response) -> assertEquals(iupd.equals("IUPD-7") ? HttpStatus.BAD_REQUEST.value() : HttpStatus.CREATED.value(), response.getStatus()));
+        assertTrue(calls.get() < 20);
+    }
+
     private Function<RequestGPD, ResponseGPD> getMethod(ResultType resultType) {
         return switch (resultType) {
             case FAIL -> this::doMockedThingsFail;
@@ -91,10 +161,10 @@ public class CRUDServiceTest {
 
     public static class EStatusService extends StatusService {
         @Override
-        public void appendResponses(String invocationId, String fiscalCode, String key, Map<String, ResponseGPD> responses) {
+        public void appendResponses(String invocationId, String fiscalCode, String key, List<List<String>> chunks, Map<String, ResponseGPD> responses) {
         }
 
-        public void appendResponse(String invocationId, String fiscalCode, String key, List<String> iUPDs, ResponseGPD response) {
+        public void appendResponse(String invocationId, String fiscalCode, String key, List<List<String>> chunks, ResponseGPD response) {
         }
     }
 }
@@ -4,10 +4,12 @@ import it.gov.pagopa.gpd.upload.entity.DeleteMessage;
 import it.gov.pagopa.gpd.upload.entity.UpsertMessage;
 import it.gov.pagopa.gpd.upload.functions.util.TestUtil;
 import it.gov.pagopa.gpd.upload.model.QueueMessage;
+import it.gov.pagopa.gpd.upload.model.pd.PaymentPosition;
 import it.gov.pagopa.gpd.upload.service.MessageTranslator;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import java.util.ArrayList;
 import java.util.List;
 
 
@@ -31,4 +33,20 @@ public class MessageTranslatorTest {
 
         Assertions.assertEquals(queueMessage.getUploadKey(), "mock");
     }
+
+    @Test
+    void testUpsertIndexed() {
+        MessageTranslator msgTranslator = MessageTranslator.getInstance();
+        List<PaymentPosition> paymentPositions = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            PaymentPosition paymentPosition = TestUtil.getMockDebtPosition();
+            paymentPosition.setIupd("IUPD_" + i);
+            paymentPositions.add(paymentPosition);
+        }
+        UpsertMessage upsertMessage = new UpsertMessage(TestUtil.getCreateQueueMessage().toBuilder().paymentPositions(paymentPositions).build());
+        QueueMessage queueMessage = msgTranslator.translate(upsertMessage, List.of("IUPD_42", "IUPD_7", "IUPD_missing"));
+
+        Assertions.assertEquals(List.of("IUPD_42", "IUPD_7"), queueMessage.getPaymentPositions().stream().map(PaymentPosition::getIupd).toList());
+        Assertions.assertEquals("IUPD_99", upsertMessage.getPaymentPositions("IUPD_99").get(0).getIupd());
+    }
 }
@@ -1,29 +1,49 @@
 package it.gov.pagopa.gpd.upload.functions.service;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.azure.storage.queue.QueueAsyncClient;
+import com.azure.storage.queue.QueueClientBuilder;
+import com.azure.storage.queue.QueueMessageEncoding;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.microsoft.azure.functions.ExecutionContext;
-import com.microsoft.azure.storage.CloudStorageAccount;
-import com.microsoft.azure.storage.StorageException;
-import com.microsoft.azure.storage.queue.CloudQueue;
+import it.gov.pagopa.gpd.upload.exception.AppException;
 import it.gov.pagopa.gpd.upload.functions.util.TestUtil;
 import it.gov.pagopa.gpd.upload.model.CRUDOperation;
 import it.gov.pagopa.gpd.upload.model.QueueMessage;
+import it.gov.pagopa.gpd.upload.model.enumeration.QueueCodec;
 import it.gov.pagopa.gpd.upload.model.enumeration.ServiceType;
+import it.gov.pagopa.gpd.upload.model.pd.PaymentPosition;
+import it.gov.pagopa.gpd.upload.repository.BlobRepository;
 import it.gov.pagopa.gpd.upload.service.QueueService;
+import it.gov.pagopa.gpd.upload.util.ObjectMapperUtils;
+import it.gov.pagopa.gpd.upload.util.QueueMessageCodec;
 import org.junit.ClassRule;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.mockito.MockedStatic;
 import org.mockito.Mockito;
 import org.testcontainers.containers.GenericContainer;
 import org.testcontainers.junit.jupiter.Container;
 import org.testcontainers.junit.jupiter.Testcontainers;
 import org.testcontainers.utility.DockerImageName;
 
-import java.net.URISyntaxException;
-import java.security.InvalidKeyException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
 import java.util.List;
 import java.util.logging.Logger;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockStatic;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @Testcontainers
@@ -41,32 +61,189 @@ public class QueueServiceTest {
     String localContainerConnectionString = "DefaultEndpointsProtocol=http;AccountName=devstoreaccount1;AccountKey=Eby8vdM02xNOcqFlqUwJPLlmEtlCDXJ1OUzFT50uSRZ6IFsuFq2UVErCz4I6tq/K1SZFPTOtr/KBHBeksoGMGw==;BlobEndpoint=http://127.0.0.1:10000/devstoreaccount1;QueueEndpoint=http://127.0.0.1:10001/devstoreaccount1;";
 
     @Test
-    void testUpdateQueueMessage() throws URISyntaxException, InvalidKeyException, StorageException {
-        CloudQueue cloudQueue = CloudStorageAccount.parse(localContainerConnectionString)
-                                                    .createCloudQueueClient()
-                                                    .getQueueReference("VALID_POSITIONS_QUEUE");
+    void testUpdateQueueMessage() {
+        QueueAsyncClient queueClient = getQueueClient();
 
         Logger logger = Logger.getLogger("gpd-upload-test-logger");
-        queueService = new QueueService(logger, cloudQueue);
+        queueService = new QueueService(logger, queueClient);
         when(context.getLogger()).thenReturn(logger);
         QueueMessage.QueueMessageBuilder builder = queueService.generateMessageBuilder(CRUDOperation.UPDATE, "key", "orgFiscalCode", "brokerCode", ServiceType.GPD);
-        ObjectMapper om = new ObjectMapper();
-        om.registerModule(new JavaTimeModule());
-        queueService.enqueueUpsertMessage(context, om, List.of(TestUtil.getMockDebtPosition()), builder, 0, null);
+        queueService.enqueueUpsertMessage(context, List.of(TestUtil.getMockDebtPosition()), builder, 0, null);
     }
 
     @Test
-    void testDeleteQueueMessage() throws URISyntaxException, InvalidKeyException, StorageException {
-        CloudQueue cloudQueue = CloudStorageAccount.parse(localContainerConnectionString)
-                                        .createCloudQueueClient()
-                                        .getQueueReference("VALID_POSITIONS_QUEUE");
+    void testDeleteQueueMessage() {
+        QueueAsyncClient queueClient = getQueueClient();
 
         Logger logger = Logger.getLogger("gpd-upload-test-logger");
-        queueService = new QueueService(logger, cloudQueue);
+        queueService = new QueueService(logger, queueClient);
         when(context.getLogger()).thenReturn(logger);
         QueueMessage.QueueMessageBuilder builder = queueService.generateMessageBuilder(CRUDOperation.DELETE, "key", "orgFiscalCode", "brokerCode", ServiceType.GPD);
-        ObjectMapper om = new ObjectMapper();
-        om.registerModule(new JavaTimeModule());
-        queueService.enqueueDeleteMessage(context, om, List.of(new String[]{"IUPD1"}), builder, 0);
+        queueService.enqueueDeleteMessage(context, List.of(new String[]{"IUPD1"}), builder, 0);
+    }
+
+    @Test
+    void testPackUpsertMessages() throws JsonProcessingException, AppException {
+        queueService = new QueueService(Logger.getLogger("gpd-upload-test-logger"), null);
+        QueueMessage.QueueMessageBuilder builder = queueService.generateMessageBuilder(CRUDOperation.CREATE, "key", "orgFiscalCode", "brokerCode", ServiceType.GPD);
+        List<PaymentPosition> paymentPositions = new ArrayList<>();
+        for (int i = 0; i < 45; i++)
+            paymentPositions.add(TestUtil.getMockDebtPosition());
+
+        List<byte[]> messages = queueService.packUpsertMessages(paymentPositions, builder, 20);
+
+        assertEquals(3, messages.size());
+        int packed = 0;
+        for (byte[] message : messages) {
+            QueueMessage queueMessage = ObjectMapperUtils.QUEUE_MESSAGE_READER.readValue(message);
+            assertEquals("key", queueMessage.getUploadKey());
+            packed += queueMessage.getPaymentPositions().size();
+        }
+        assertEquals(45, packed);
+    }
+
+    @Test
+    void testPackUpsertMessagesFull() throws JsonProcessingException, AppException {
+        queueService = new QueueService(Logger.getLogger("gpd-upload-test-logger"), null);
+        QueueMessage.QueueMessageBuilder builder = queueService.generateMessageBuilder(CRUDOperation.CREATE, "key", "orgFiscalCode", "brokerCode", ServiceType.GPD);
+        List<PaymentPosition> paymentPositions = new ArrayList<>();
+        for (int i = 0; i < 45; i++)
+            paymentPositions.add(TestUtil.getMockDebtPosition());
+
+        // packed by size only: the positions fit in one message, under the bulk limit
+        List<byte[]> messages = queueService.packUpsertMessages(paymentPositions, builder, QueueService.MAX_POSITIONS);
+
+        assertEquals(1, messages.size());
+        assertEquals(45, ObjectMapperUtils.QUEUE_MESSAGE_READER.<QueueMessage>readValue(messages.get(0)).getPaymentPositions().size());
+    }
+
+    @Test
+    void testPackDeleteMessagesBulkLimit() throws IOException, AppException {
+        queueService = new QueueService(Logger.getLogger("gpd-upload-test-logger"), null);
+        QueueMessage.QueueMessageBuilder builder = queueService.generateMessageBuilder(CRUDOperation.DELETE, "key", "orgFiscalCode", "brokerCode", ServiceType.GPD);
+        List<String> IUPDList = new ArrayList<>();
+        for (int i = 0; i < 150; i++)
+            IUPDList.add("IUPD_" + i);
+
+        List<byte[]> messages = queueService.packDeleteMessages(IUPDList, builder);
+
+        assertEquals(2, messages.size());
+        assertEquals(QueueService.MAX_POSITIONS, QueueMessageCodec.decode(messages.get(0)).getPaymentPositionIUPDs().size());
+    }
+
+    @Test
+    void testPackUpsertMessagesBySize() throws JsonProcessingException, AppException {
+        queueService = new QueueService(Logger.getLogger("gpd-upload-test-logger"), null);
+        QueueMessage.QueueMessageBuilder builder = queueService.generateMessageBuilder(CRUDOperation.CREATE, "key", "orgFiscalCode", "brokerCode", ServiceType.GPD);
+        List<PaymentPosition> paymentPositions = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            PaymentPosition paymentPosition = TestUtil.getMockDebtPosition();
+            paymentPosition.setCompanyName("x".repeat(10 * 1024));
+            paymentPositions.add(paymentPosition);
+        }
+
+        List<byte[]> messages = queueService.packUpsertMessages(paymentPositions, builder, 20);
+
+        // 64 KB base64-encoded hold 4 positions of 10 KB
+        assertEquals(3, messages.size());
+        assertEquals(4, ObjectMapperUtils.QUEUE_MESSAGE_READER.<QueueMessage>readValue(messages.get(0)).getPaymentPositions().size());
+    }
+
+    @Test
+    void testPackUpsertMessagesTooLarge() {
+        queueService = new QueueService(Logger.getLogger("gpd-upload-test-logger"), null);
+        QueueMessage.QueueMessageBuilder builder = queueService.generateMessageBuilder(CRUDOperation.CREATE, "key", "orgFiscalCode", "brokerCode", ServiceType.GPD);
+        PaymentPosition paymentPosition = TestUtil.getMockDebtPosition();
+        paymentPosition.setCompanyName("x".repeat(64 * 1024));
+
+        assertThrows(AppException.class, () -> queueService.packUpsertMessages(List.of(paymentPosition), builder, 20));
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = QueueCodec.class, names = {"GZIP", "SMILE", "CBOR"})
+    void testPackUpsertMessagesEncoded(QueueCodec codec) throws IOException, AppException {
+        queueService = new QueueService(Logger.getLogger("gpd-upload-test-logger"), null, codec);
+        QueueMessage.QueueMessageBuilder builder = queueService.generateMessageBuilder(CRUDOperation.CREATE, "key", "orgFiscalCode", "brokerCode", ServiceType.GPD);
+        List<PaymentPosition> paymentPositions = new ArrayList<>();
+        for (int i = 0; i < 200; i++)
+            paymentPositions.add(TestUtil.getMockDebtPosition());
+
+        List<byte[]> messages = queueService.packUpsertMessages(paymentPositions, builder, 100);
+
+        int packed = 0;
+        for (byte[] message : messages) {
+            // binary frame: marker and codec, the payload is not base64-encoded twice
+            assertEquals(0, message[0]);
+            assertEquals(codec.ordinal(), message[1]);
+            QueueMessage queueMessage = QueueMessageCodec.decode(message);
+            assertEquals("key", queueMessage.getUploadKey());
+            packed += queueMessage.getPaymentPositions().size();
+        }
+        assertEquals(200, packed);
+    }
+
+    @Test
+    void testPackUpsertMessagesGzip() throws JsonProcessingException, AppException {
+        queueService = new QueueService(Logger.getLogger("gpd-upload-test-logger"), null, QueueCodec.GZIP);
+        QueueMessage.QueueMessageBuilder builder = queueService.generateMessageBuilder(CRUDOperation.CREATE, "key", "orgFiscalCode", "brokerCode", ServiceType.GPD);
+        List<PaymentPosition> paymentPositions = new ArrayList<>();
+        for (int i = 0; i < 200; i++)
+            paymentPositions.add(TestUtil.getMockDebtPosition());
+
+        // the size is checked on the compressed message: 100 positions fit where plain JSON holds about 20
+        assertEquals(2, queueService.packUpsertMessages(paymentPositions, builder, 100).size());
+    }
+
+    @Test
+    void testDecodePlainMessage() throws IOException {
+        byte[] message = ObjectMapperUtils.QUEUE_MESSAGE_WRITER.writeValueAsBytes(TestUtil.getMockInputMessage(CRUDOperation.DELETE));
+        // messages written before the codec are still read
+        assertEquals(CRUDOperation.DELETE, QueueMessageCodec.decode(message).getCrudOperation());
+    }
+
+    @Test
+    void testDecodeEnvelopeMessage() throws IOException {
+        byte[] data = ObjectMapperUtils.QUEUE_MESSAGE_SMILE_WRITER.writeValueAsBytes(TestUtil.getMockInputMessage(CRUDOperation.DELETE));
+        String envelope = "{\"codec\":\"SMILE\",\"data\":\"" + Base64.getEncoder().encodeToString(data) + "\"}";
+        // messages enqueued in the tagged envelope by the previous versions are still read
+        assertEquals(CRUDOperation.DELETE, QueueMessageCodec.decode(envelope.getBytes(StandardCharsets.UTF_8)).getCrudOperation());
+    }
+
+    @Test
+    void testClaimCheckUpsertMessages() throws JsonProcessingException, AppException {
+        Logger logger = Logger.getLogger("gpd-upload-test-logger");
+        queueService = new QueueService(logger, null);
+        QueueMessage.QueueMessageBuilder builder = queueService.generateMessageBuilder(CRUDOperation.CREATE, "key", "orgFiscalCode", "brokerCode", ServiceType.GPD);
+        List<PaymentPosition> paymentPositions = new ArrayList<>();
+        for (int i = 0; i < 1200; i++) {
+            PaymentPosition paymentPosition = TestUtil.getMockDebtPosition();
+            paymentPosition.setIupd("IUPD_" + i);
+            paymentPositions.add(paymentPosition);
+        }
+
+        BlobRepository blobRepository = mock(BlobRepository.class);
+        try (MockedStatic<BlobRepository> mockedStatic = mockStatic(BlobRepository.class)) {
+            mockedStatic.when(() -> BlobRepository.getInstance(logger)).thenReturn(blobRepository);
+            when(blobRepository.stagePayload(eq("brokerCode"), eq("orgFiscalCode"), eq("key"), any())).thenReturn("/orgFiscalCode/staging/key/payload.json");
+
+            List<byte[]> messages = queueService.claimCheckUpsertMessages(paymentPositions, builder, 500);
+
+            // chunks of any size are staged, the messages only carry the reference
+            assertEquals(3, messages.size());
+            verify(blobRepository, times(3)).stagePayload(eq("brokerCode"), eq("orgFiscalCode"), eq("key"), any());
+            QueueMessage last = ObjectMapperUtils.QUEUE_MESSAGE_READER.readValue(messages.get(2));
+            assertEquals("/orgFiscalCode/staging/key/payload.json", last.getPayloadBlob());
+            assertEquals("IUPD_1000", last.getFirstIUPD());
+            assertEquals("IUPD_1199", last.getLastIUPD());
+            assertNull(last.getPaymentPositions());
+        }
+    }
+
+    private QueueAsyncClient getQueueClient() {
+        return new QueueClientBuilder()
+                       .connectionString(localContainerConnectionString)
+                       .queueName("valid-positions-queue")
+                       .messageEncoding(QueueMessageEncoding.BASE64)
+                       .buildAsyncClient();
     }
 }
@@ -4,15 +4,19 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import it.gov.pagopa.gpd.upload.entity.DeleteMessage;
+import it.gov.pagopa.gpd.upload.entity.RawUpsertMessage;
 import it.gov.pagopa.gpd.upload.entity.UpsertMessage;
 import it.gov.pagopa.gpd.upload.functions.util.TestUtil;
 import it.gov.pagopa.gpd.upload.model.RequestGPD;
 import it.gov.pagopa.gpd.upload.model.pd.MultipleIUPD;
 import it.gov.pagopa.gpd.upload.model.pd.PaymentPositions;
 import it.gov.pagopa.gpd.upload.service.RequestTranslator;
+import it.gov.pagopa.gpd.upload.util.ObjectMapperUtils;
+import it.gov.pagopa.gpd.upload.util.RawMessageReader;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import java.io.IOException;
 import java.util.Optional;
 
 public class RequestTranslatorTest {
@@ -60,4 +64,19 @@ public class RequestTranslatorTest {
         String expectedBody = objectMapper.writeValueAsString(new PaymentPositions(upsertMessage.getPaymentPositions()));
         Assertions.assertEquals(expectedBody, requestGPD.getBody());
     }
+
+    @Test
+    void testRawUpsertBulk() throws IOException {
+        RequestTranslator requestTranslator = RequestTranslator.getInstance();
+        String message = ObjectMapperUtils.QUEUE_MESSAGE_WRITER.writeValueAsString(TestUtil.getCreateQueueMessage());
+        RawUpsertMessage rawMessage = new RawUpsertMessage(RawMessageReader.read(message));
+        UpsertMessage upsertMessage = new UpsertMessage(TestUtil.getCreateQueueMessage());
+
+        // the fragments passed through give the same body as the bound positions
+        Assertions.assertEquals(upsertMessage.getIUPDList(), rawMessage.getIUPDList());
+        Assertions.assertEquals(requestTranslator.create(upsertMessage, RequestGPD.Mode.BULK, Optional.empty()).getBody(),
+                requestTranslator.create(rawMessage, RequestGPD.Mode.BULK, Optional.empty()).getBody());
+        Assertions.assertEquals(requestTranslator.create(upsertMessage, RequestGPD.Mode.SINGLE, Optional.of("IUPD_77777777777_92bd6")).getBody(),
+                requestTranslator.create(rawMessage, RequestGPD.Mode.SINGLE, Optional.of("IUPD_77777777777_92bd6")).getBody());
+    }
 }
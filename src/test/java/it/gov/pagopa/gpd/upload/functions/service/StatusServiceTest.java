@@ -1,6 +1,7 @@
 package it.gov.pagopa.gpd.upload.functions.service;
 
 import com.microsoft.azure.functions.ExecutionContext;
+import it.gov.pagopa.gpd.upload.entity.ResponseEntry;
 import it.gov.pagopa.gpd.upload.exception.AppException;
 import it.gov.pagopa.gpd.upload.model.enumeration.ServiceType;
 import it.gov.pagopa.gpd.upload.repository.StatusRepository;
@@ -14,6 +15,7 @@ import org.mockito.Spy;
 import org.mockito.junit.jupiter.MockitoExtension;
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.logging.Logger;
@@ -68,9 +70,8 @@ public class StatusServiceTest {
     @Test
     void appendResponseOK() throws AppException {
         doReturn(statusRepository).when(statusService).getStatusRepository();
-        doReturn(getMockStatus()).when(statusRepository).getStatus(any(), any(), any());
-        doNothing().when(statusRepository).upsertStatus(any(), any(), any());
-        statusService.appendResponse(ctx.getInvocationId(), "fiscalCode", "key", List.of("IUPD1"), getOKMockResponseGPD());
+        doNothing().when(statusRepository).appendResponses(any(), any(), any(), any(), any());
+        statusService.appendResponse(ctx.getInvocationId(), "fiscalCode", "key", List.of(List.of("IUPD1")), getOKMockResponseGPD());
         //Assertion
         assertTrue(true);
     }
@@ -78,9 +79,8 @@ public class StatusServiceTest {
     @Test
     void appendResponsesOK() throws AppException {
         doReturn(statusRepository).when(statusService).getStatusRepository();
-        doReturn(getMockStatus()).when(statusRepository).getStatus(any(), any(), any());
-        doNothing().when(statusRepository).upsertStatus(any(), any(), any());
-        statusService.appendResponses(ctx.getInvocationId(), "fiscalCode", "key", new HashMap<>());
+        doNothing().when(statusRepository).appendResponses(any(), any(), any(), any(), any());
+        statusService.appendResponses(ctx.getInvocationId(), "fiscalCode", "key", List.of(), new HashMap<>());
         //Assertion
         assertTrue(true);
     }
@@ -88,11 +88,35 @@ public class StatusServiceTest {
     @Test
     void updateStatusOK() throws AppException {
         doReturn(statusRepository).when(statusService).getStatusRepository();
-        doReturn(getMockStatus()).when(statusRepository).getStatus(any(), any(), any());
-        doNothing().when(statusRepository).upsertStatus(any(), any(), any());
+        doNothing().when(statusRepository).appendResponses(any(), any(), any(), any(), any());
         statusService.logger = Logger.getLogger("JUnit-test");
         statusService.updateStatus(ctx.getInvocationId(), "fiscalCode", "key", getMockResponseEntries());
         //Assertion
-        assertTrue(true);
+        verify(statusRepository).appendResponses(any(), eq("key"), eq("fiscalCode"), any(), argThat(entries -> entries.size() == 1));
+    }
+
+    @Test
+    void updateStatusMergeOK() throws AppException {
+        doReturn(statusRepository).when(statusService).getStatusRepository();
+        doNothing().when(statusRepository).appendResponses(any(), any(), any(), any(), any());
+        statusService.logger = Logger.getLogger("JUnit-test");
+        List<ResponseEntry> entries = new ArrayList<>(getMockResponseEntries());
+        entries.addAll(getMockResponseEntries());
+        statusService.updateStatus(ctx.getInvocationId(), "fiscalCode", "key", entries);
+        //Assertion: entries with the same status are sent as one
+        verify(statusRepository).appendResponses(any(), eq("key"), eq("fiscalCode"), any(),
+                argThat(merged -> merged.size() == 1 && merged.get(0).getRequestIDs().size() == 2));
+    }
+
+    @Test
+    void appendResponseChunksOK() throws AppException {
+        doReturn(statusRepository).when(statusService).getStatusRepository();
+        doNothing().when(statusRepository).appendResponses(any(), any(), any(), any(), any());
+        statusService.logger = Logger.getLogger("JUnit-test");
+        List<List<String>> chunks = List.of(List.of("IUPD1"), List.of("IUPD2", "IUPD3"));
+        statusService.appendResponse(ctx.getInvocationId(), "fiscalCode", "key", chunks, getOKMockResponseGPD());
+        //Assertion: one entry for the merged request, the chunks of its messages are kept for their shards
+        verify(statusRepository).appendResponses(any(), eq("key"), eq("fiscalCode"), eq(chunks),
+                argThat(entries -> entries.size() == 1 && entries.get(0).getRequestIDs().size() == 3));
     }
 }
@@ -0,0 +1,50 @@
+package it.gov.pagopa.gpd.upload.functions.util;
+
+import it.gov.pagopa.gpd.upload.util.AdmissionController;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class AdmissionControllerTest {
+
+    private static final long MB = 1024 * 1024;
+
+    @Test
+    void admitOK() {
+        AdmissionController controller = new AdmissionController(getMemoryMXBean(100 * MB, 1000 * MB), 0.8, 10);
+
+        assertTrue(controller.admit(10 * MB));
+        // capped to half of the limit (400 MB): fits with 100 MB in use
+        assertTrue(controller.admit(5000 * MB));
+
+        Map<String, Long> metrics = controller.getMetrics();
+        assertEquals(2, metrics.get("admitted"));
+        assertEquals(0, metrics.get("delayed"));
+        assertEquals(800 * MB, metrics.get("heapLimit"));
+    }
+
+    @Test
+    void admitRejected() {
+        AdmissionController controller = new AdmissionController(getMemoryMXBean(700 * MB, 1000 * MB), 0.8, 10);
+
+        assertTrue(controller.admit(50 * MB));
+        assertFalse(controller.admit(200 * MB)); // no GC in 10 ms frees memory
+
+        Map<String, Long> metrics = controller.getMetrics();
+        assertEquals(1, metrics.get("admitted"));
+        assertEquals(1, metrics.get("delayed"));
+        assertEquals(1, metrics.get("rejected"));
+    }
+
+    private MemoryMXBean getMemoryMXBean(long used, long max) {
+        MemoryMXBean memoryMXBean = mock(MemoryMXBean.class);
+        when(memoryMXBean.getHeapMemoryUsage()).thenReturn(new MemoryUsage(0, used, max, max));
+        return memoryMXBean;
+    }
+}
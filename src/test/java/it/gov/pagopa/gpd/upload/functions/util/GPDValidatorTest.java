@@ -0,0 +1,113 @@
+package it.gov.pagopa.gpd.upload.functions.util;
+
+import it.gov.pagopa.gpd.upload.entity.ResponseEntry;
+import it.gov.pagopa.gpd.upload.model.enumeration.ValidationEngine;
+import it.gov.pagopa.gpd.upload.model.pd.PaymentPosition;
+import it.gov.pagopa.gpd.upload.util.CompiledValidator;
+import it.gov.pagopa.gpd.upload.util.GPDValidator;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class GPDValidatorTest {
+
+    private final Logger logger = Logger.getLogger("GPDValidatorTest");
+
+    @Test
+    void removeInvalidOK() {
+        List<PaymentPosition> positions = new ArrayList<>(List.of(TestUtil.getMockDebtPosition(), TestUtil.getMockDebtPosition()));
+        List<ResponseEntry> entries = GPDValidator.removeInvalid(logger, positions);
+
+        assertTrue(entries.isEmpty());
+        assertEquals(2, positions.size());
+    }
+
+    @Test
+    void removeInvalidKO() {
+        List<PaymentPosition> positions = new ArrayList<>(List.of(TestUtil.getMockDebtPosition(), TestUtil.getMockInvalidDebtPosition()));
+        List<ResponseEntry> entries = GPDValidator.removeInvalid(logger, positions);
+
+        assertEquals(1, entries.size());
+        assertEquals(400, entries.get(0).getStatusCode());
+        assertEquals(1, positions.size());
+    }
+
+    @Test
+    void removeInvalidParallelKeepsOrder() {
+        List<PaymentPosition> positions = new ArrayList<>();
+        List<String> expectedValid = new ArrayList<>();
+        List<String> expectedInvalid = new ArrayList<>();
+        for (int i = 0; i < GPDValidator.PARALLEL_THRESHOLD * 2; i++) {
+            PaymentPosition position = i % 7 == 0 ? TestUtil.getMockInvalidDebtPosition() : TestUtil.getMockDebtPosition();
+            position.setIupd("IUPD-" + i);
+            positions.add(position);
+            (i % 7 == 0 ? expectedInvalid : expectedValid).add(position.getIupd());
+        }
+
+        List<ResponseEntry> entries = GPDValidator.removeInvalid(logger, positions);
+
+        assertEquals(expectedInvalid, entries.stream().map(entry -> entry.getRequestIDs().get(0)).toList());
+        assertEquals(expectedValid, positions.stream().map(PaymentPosition::getIupd).toList());
+    }
+
+    @Test
+    void compiledEngineOK() {
+        PaymentPosition invalid = TestUtil.getMockInvalidDebtPosition();
+        List<PaymentPosition> positions = new ArrayList<>(List.of(TestUtil.getMockDebtPosition(), invalid));
+        List<ResponseEntry> entries = GPDValidator.removeInvalid(logger, positions, ValidationEngine.COMPILED);
+
+        assertEquals(1, entries.size());
+        assertEquals("Please provide a valid email address", entries.get(0).getStatusMessage());
+        assertEquals(1, positions.size());
+    }
+
+    @Test
+    void compiledValidatorKO() {
+        PaymentPosition position = TestUtil.getMockDebtPosition();
+        position.setIupd(" ");
+        position.setCountry("it");
+        position.setCompanyName("x".repeat(141));
+        position.getPaymentOption().get(0).setDueDate(null);
+
+        // sorted by property path
+        assertEquals(List.of("size must be between 0 and 140",
+                "The country must be reported with two capital letters (example: IT)",
+                "iupd is required",
+                "due date is required"), CompiledValidator.validate(position));
+    }
+
+    @Test
+    void enginesSameFirstViolation() {
+        PaymentPosition position = TestUtil.getMockInvalidDebtPosition();
+        position.setIupd(" ");
+        position.setCountry("it");
+        position.getPaymentOption().get(0).setDueDate(null);
+        PaymentPosition copy = position.toBuilder().build();
+
+        List<ResponseEntry> bean = GPDValidator.removeInvalid(logger, new ArrayList<>(List.of(position)), ValidationEngine.BEAN_VALIDATION);
+        List<ResponseEntry> compiled = GPDValidator.removeInvalid(logger, new ArrayList<>(List.of(copy)), ValidationEngine.COMPILED);
+
+        assertEquals("The country must be reported with two capital letters (example: IT)", bean.get(0).getStatusMessage());
+        assertEquals(bean.get(0).getStatusMessage(), compiled.get(0).getStatusMessage());
+    }
+
+    @Test
+    void compiledEmailSameAsBeanValidation() {
+        List<String> emails = List.of("mario.rossi@pagopa.it", "", "mario.rossi", "mario..rossi@pagopa.it", "\"mario rossi\"@pagopa.it",
+                "mario@[10.0.0.1]", "mario@[IPv6:::1]", "mario@pagopa.", "mario@-pagopa.it", "x".repeat(65) + "@pagopa.it");
+        for (String email : emails) {
+            PaymentPosition position = TestUtil.getMockDebtPosition();
+            position.setEmail(email);
+            PaymentPosition copy = position.toBuilder().build();
+
+            List<ResponseEntry> bean = GPDValidator.removeInvalid(logger, new ArrayList<>(List.of(position)), ValidationEngine.BEAN_VALIDATION);
+            List<ResponseEntry> compiled = GPDValidator.removeInvalid(logger, new ArrayList<>(List.of(copy)), ValidationEngine.COMPILED);
+
+            assertEquals(bean.size(), compiled.size(), email);
+        }
+    }
+}
@@ -1,10 +1,16 @@
 package it.gov.pagopa.gpd.upload.functions.util;
 
+import it.gov.pagopa.gpd.upload.entity.ResponseEntry;
+import it.gov.pagopa.gpd.upload.entity.Status;
 import it.gov.pagopa.gpd.upload.model.UploadReport;
 import it.gov.pagopa.gpd.upload.util.MapUtils;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import static it.gov.pagopa.gpd.upload.functions.util.TestUtil.getMockResponseEntries;
 import static it.gov.pagopa.gpd.upload.functions.util.TestUtil.getMockStatus;
 
 public class MapUtilsTest {
@@ -14,4 +20,16 @@ public class MapUtilsTest {
         UploadReport report = MapUtils.convert(getMockStatus());
         Assertions.assertNotNull(report);
     }
+
+    @Test
+    void runMergeResponsesOK() {
+        Status status = getMockStatus();
+        ArrayList<ResponseEntry> responses = getMockResponseEntries();
+        responses.addAll(getMockResponseEntries());
+        status.getUpload().setResponses(responses);
+
+        UploadReport report = MapUtils.convert(status);
+        Assertions.assertEquals(1, report.getResponses().size());
+        Assertions.assertEquals(List.of("IUPD1", "IUPD1"), report.getResponses().get(0).getRequestIDs());
+    }
 }
@@ -0,0 +1,98 @@
+package it.gov.pagopa.gpd.upload.functions.util;
+
+import it.gov.pagopa.gpd.upload.exception.AppException;
+import it.gov.pagopa.gpd.upload.util.MessageBatcher;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageBatcherTest {
+
+    @Test
+    void batchOK() throws Exception {
+        MessageBatcher<Integer> batcher = new MessageBatcher<>(500, 100);
+        List<List<Integer>> batches = new CopyOnWriteArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = IntStream.range(0, 4)
+                                              .mapToObj(i -> executor.submit(() -> {
+                                                  batcher.submit("key", i, 10, batches::add);
+                                                  return null;
+                                              }))
+                                              .toList();
+            for (Future<?> future : futures)
+                future.get(5, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdown();
+        }
+
+        // submitted within the linger: processed once
+        assertEquals(1, batches.size());
+        assertEquals(4, batches.get(0).size());
+    }
+
+    @Test
+    void batchFull() throws Exception {
+        MessageBatcher<Integer> batcher = new MessageBatcher<>(60000, 10);
+        List<List<Integer>> batches = new CopyOnWriteArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> first = executor.submit(() -> {
+                batcher.submit("key", 1, 10, batches::add);
+                return null;
+            });
+            Thread.sleep(100);
+            executor.submit(() -> {
+                batcher.submit("key", 2, 1, batches::add);
+                return null;
+            });
+            // no room left for the second item: the first batch is processed without waiting the linger
+            first.get(5, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow(); // the second batch stops waiting
+        }
+
+        assertEquals(List.of(1), batches.get(0));
+    }
+
+    @Test
+    void batchExactlyFull() throws Exception {
+        MessageBatcher<Integer> batcher = new MessageBatcher<>(60000, 10);
+        List<List<Integer>> batches = new CopyOnWriteArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> first = executor.submit(() -> {
+                batcher.submit("key", 1, 4, batches::add);
+                return null;
+            });
+            Thread.sleep(100);
+            Future<?> second = executor.submit(() -> {
+                batcher.submit("key", 2, 6, batches::add);
+                return null;
+            });
+            // the second item fills the batch: processed without waiting the linger or a third item
+            first.get(5, TimeUnit.SECONDS);
+            second.get(5, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(List.of(List.of(1, 2)), batches);
+    }
+
+    @Test
+    void batchKO() {
+        MessageBatcher<Integer> batcher = new MessageBatcher<>(0, 100);
+        assertThrows(AppException.class, () -> batcher.submit("key", 1, 1, items -> {
+            throw new AppException("failed");
+        }));
+    }
+}
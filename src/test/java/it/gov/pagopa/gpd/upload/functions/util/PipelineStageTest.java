@@ -0,0 +1,102 @@
+package it.gov.pagopa.gpd.upload.functions.util;
+
+import it.gov.pagopa.gpd.upload.exception.AppException;
+import it.gov.pagopa.gpd.upload.util.PipelineStage;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PipelineStageTest {
+
+    @Test
+    void pipelineOK() throws InterruptedException {
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        List<String> sent = new ArrayList<>();
+        PipelineStage<String> last = new PipelineStage<>("last", 1, sent::add, failure);
+        PipelineStage<Integer> first = new PipelineStage<>("first", 1, item -> last.submit("item-" + item), failure);
+
+        for (int i = 0; i < 100; i++)
+            first.submit(i);
+        first.finish();
+        last.finish();
+
+        assertNull(failure.get());
+        assertEquals(100, sent.size());
+        assertEquals("item-0", sent.get(0));
+        assertEquals("item-99", sent.get(99));
+    }
+
+    @Test
+    void pipelineKO() throws InterruptedException {
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        List<Integer> processed = new ArrayList<>();
+        PipelineStage<Integer> stage = new PipelineStage<>("stage", 1, item -> {
+            if (item == 3)
+                throw new AppException("failed");
+            processed.add(item);
+        }, failure);
+
+        // the producer never blocks after the failure
+        for (int i = 0; i < 100; i++)
+            stage.submit(i);
+        stage.finish();
+
+        assertInstanceOf(AppException.class, failure.get());
+        assertEquals(List.of(0, 1, 2), processed);
+    }
+
+    @Test
+    void pipelineAborted() throws InterruptedException {
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        CountDownLatch started = new CountDownLatch(1);
+        PipelineStage<Integer> stage = new PipelineStage<>("stage", 1, item -> {
+            started.countDown();
+            Thread.sleep(60000); // stuck item
+        }, failure);
+        stage.submit(1);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        InterruptedException cause = new InterruptedException("aborted");
+        stage.abort(cause);
+        // no END needed: the thread ends and finish doesn't block
+        stage.finish();
+
+        assertSame(cause, failure.get());
+    }
+
+    @Test
+    void pipelineAbortedReleasesProducer() throws Exception {
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        CountDownLatch started = new CountDownLatch(1);
+        PipelineStage<Integer> stage = new PipelineStage<>("stage", 1, item -> {
+            started.countDown();
+            Thread.sleep(60000); // stuck item
+        }, failure);
+        stage.submit(1);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        stage.submit(2); // the queue is full
+
+        CountDownLatch submitted = new CountDownLatch(1);
+        Thread producer = new Thread(() -> {
+            try {
+                stage.submit(3);
+                submitted.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        producer.start();
+        stage.abort(new AppException("aborted"));
+
+        // the producer blocked on the full queue returns, and finish doesn't wait for an END nobody takes
+        assertTrue(submitted.await(5, TimeUnit.SECONDS));
+        stage.finish();
+        assertInstanceOf(AppException.class, failure.get());
+    }
+}
@@ -0,0 +1,113 @@
+package it.gov.pagopa.gpd.upload.functions.util;
+
+import it.gov.pagopa.gpd.upload.entity.ResponseEntry;
+import it.gov.pagopa.gpd.upload.model.pd.PaymentOption;
+import it.gov.pagopa.gpd.upload.model.pd.PaymentPosition;
+import it.gov.pagopa.gpd.upload.model.pd.Transfer;
+import it.gov.pagopa.gpd.upload.util.LongHashSet;
+import it.gov.pagopa.gpd.upload.util.PreflightValidator;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PreflightValidatorTest {
+
+    private static final String VALID_IBAN = "IT60X0542811101000000123456";
+    private final Logger logger = Logger.getLogger("PreflightValidatorTest");
+
+    @Test
+    void removeRejectedOK() {
+        PreflightValidator preflight = new PreflightValidator();
+        List<PaymentPosition> positions = new ArrayList<>(List.of(getPosition(1), getPosition(2)));
+
+        assertTrue(preflight.removeRejected(logger, positions).isEmpty());
+        assertEquals(2, positions.size());
+    }
+
+    @Test
+    void duplicatesAcrossSegmentsKO() {
+        PreflightValidator preflight = new PreflightValidator();
+        assertTrue(preflight.removeRejected(logger, new ArrayList<>(List.of(getPosition(1)))).isEmpty());
+
+        PaymentPosition sameIuv = getPosition(2);
+        sameIuv.getPaymentOption().get(0).setIuv("IUV-1");
+        List<PaymentPosition> positions = new ArrayList<>(List.of(getPosition(1), sameIuv, getPosition(3)));
+        List<ResponseEntry> entries = preflight.removeRejected(logger, positions);
+
+        assertEquals(List.of("IUPD-1", "IUPD-2"), entries.stream().map(entry -> entry.getRequestIDs().get(0)).toList());
+        assertEquals("iupd is duplicated in the upload", entries.get(0).getStatusMessage());
+        assertEquals("iuv IUV-1 is duplicated in the upload", entries.get(1).getStatusMessage());
+        assertEquals(List.of("IUPD-3"), positions.stream().map(PaymentPosition::getIupd).toList());
+    }
+
+    @Test
+    void businessRulesKO() {
+        PaymentPosition wrongSum = getPosition(1);
+        wrongSum.getPaymentOption().get(0).setAmount(99L);
+        PaymentPosition wrongIban = getPosition(2);
+        wrongIban.getPaymentOption().get(0).getTransfer().get(0).setIban("IT0000000000000000000000000");
+        PaymentPosition pastDueDate = getPosition(3);
+        pastDueDate.getPaymentOption().get(0).setDueDate(LocalDateTime.now().minusDays(1));
+        List<PaymentPosition> positions = new ArrayList<>(List.of(wrongSum, wrongIban, pastDueDate, getPosition(4)));
+
+        List<ResponseEntry> entries = new PreflightValidator().removeRejected(logger, positions);
+
+        assertEquals(3, entries.size());
+        entries.forEach(entry -> assertEquals(400, entry.getStatusCode()));
+        assertEquals(List.of("IUPD-4"), positions.stream().map(PaymentPosition::getIupd).toList());
+    }
+
+    @Test
+    void nullElementsKO() {
+        PaymentPosition nullOption = getPosition(1);
+        nullOption.setPaymentOption(Arrays.asList((PaymentOption) null));
+        PaymentPosition nullTransfer = getPosition(2);
+        nullTransfer.getPaymentOption().get(0).setTransfer(Arrays.asList((Transfer) null));
+        List<PaymentPosition> positions = new ArrayList<>(List.of(nullOption, nullTransfer, getPosition(3)));
+
+        List<ResponseEntry> entries = new PreflightValidator().removeRejected(logger, positions);
+
+        assertEquals("payment option must not be null", entries.get(0).getStatusMessage());
+        assertEquals("transfer of iuv IUV-2 must not be null", entries.get(1).getStatusMessage());
+        assertEquals(List.of("IUPD-3"), positions.stream().map(PaymentPosition::getIupd).toList());
+    }
+
+    @Test
+    void ibanChecksum() {
+        assertTrue(PreflightValidator.isValidIban(VALID_IBAN));
+        assertTrue(PreflightValidator.isValidIban("GB82WEST12345698765432"));
+        assertFalse(PreflightValidator.isValidIban("IT60X0542811101000000123457"));
+        assertFalse(PreflightValidator.isValidIban("it60x0542811101000000123456"));
+        assertFalse(PreflightValidator.isValidIban("IT60"));
+    }
+
+    @Test
+    void longHashSet() {
+        LongHashSet set = new LongHashSet(4);
+        for (long i = 0; i < 1000; i++)
+            assertTrue(set.add(i * 31));
+        assertFalse(set.add(0));
+        assertFalse(set.add(31 * 999));
+        assertTrue(set.contains(31 * 500));
+        assertFalse(set.contains(1));
+        assertEquals(1000, set.size());
+    }
+
+    private PaymentPosition getPosition(int i) {
+        PaymentPosition position = TestUtil.getMockDebtPosition();
+        position.setIupd("IUPD-" + i);
+        PaymentOption paymentOption = TestUtil.getMockPaymentOption();
+        paymentOption.setIuv("IUV-" + i);
+        Transfer transfer = TestUtil.getMockTransfer();
+        transfer.setIban(VALID_IBAN);
+        paymentOption.setTransfer(List.of(transfer));
+        position.setPaymentOption(List.of(paymentOption));
+        return position;
+    }
+}
@@ -0,0 +1,127 @@
+package it.gov.pagopa.gpd.upload.functions.util;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import it.gov.pagopa.gpd.upload.exception.AppException;
+import it.gov.pagopa.gpd.upload.model.CRUDOperation;
+import it.gov.pagopa.gpd.upload.model.UploadInput;
+import it.gov.pagopa.gpd.upload.model.pd.PaymentPosition;
+import it.gov.pagopa.gpd.upload.util.UploadInputReader;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class UploadInputReaderTest {
+
+    private final ObjectMapper om = new ObjectMapper().registerModule(new JavaTimeModule());
+    private final UploadInputReader reader = new UploadInputReader();
+
+    @Test
+    void readCreateOK() throws IOException, AppException {
+        UploadInputReader.Summary summary = reader.read(toStream(getCreateInput(3)), CRUDOperation.CREATE, 10, (op, positions) -> true, (op, iupds) -> true);
+
+        assertEquals(CRUDOperation.CREATE, summary.getOperation());
+        assertEquals(3, summary.size());
+        assertTrue(summary.isCompleted());
+        assertTrue(summary.validOneOf());
+    }
+
+    @Test
+    void readDeleteOK() throws IOException, AppException {
+        List<String> read = new ArrayList<>();
+        UploadInputReader.Summary summary = reader.read(toStream(om.writeValueAsString(TestUtil.getMockDeleteInputData())), CRUDOperation.DELETE, 10,
+                (op, positions) -> fail("no position list expected"),
+                (op, iupds) -> read.addAll(iupds));
+
+        assertEquals(CRUDOperation.DELETE, summary.getOperation());
+        assertEquals(List.of("IUPD-1", "IUPD-2"), read);
+        assertTrue(summary.isCompleted());
+        assertTrue(summary.validOneOf());
+    }
+
+    @Test
+    void readOperationAfterListOK() throws IOException, AppException {
+        String input = "{\"paymentPositionIUPDs\":[\"IUPD-1\"],\"operation\":\"DELETE\"}";
+        UploadInputReader.Summary scanned = reader.scan(toStream(input));
+
+        List<String> read = new ArrayList<>();
+        UploadInputReader.Summary summary = reader.read(toStream(input), scanned.getOperation(), 10, (op, positions) -> true, (op, iupds) -> read.addAll(iupds));
+        assertTrue(summary.isCompleted());
+        assertEquals(List.of("IUPD-1"), read);
+    }
+
+    @Test
+    void readWrongMappingKO() throws IOException, AppException {
+        String input = "{\"operation\":\"CREATE\",\"paymentPositionIUPDs\":[\"IUPD-1\"]}";
+        UploadInputReader.Summary summary = reader.read(toStream(input), CRUDOperation.CREATE, 10, (op, positions) -> true, (op, iupds) -> fail("list not allowed"));
+
+        assertFalse(summary.isCompleted());
+        assertFalse(summary.validOneOf());
+    }
+
+    @Test
+    void scanOK() throws IOException {
+        String input = "{\"paymentPositionIUPDs\":[\"IUPD-1\",\"IUPD-2\"],\"operation\":\"DELETE\"}";
+        UploadInputReader.Summary summary = reader.scan(toStream(input));
+
+        assertEquals(CRUDOperation.DELETE, summary.getOperation());
+        assertEquals(2, summary.size());
+        assertTrue(summary.validOneOf());
+    }
+
+    @Test
+    void scanBothListsKO() throws IOException {
+        // the lists are only counted: the input is rejected before any segment is handed over
+        String input = "{\"operation\":\"CREATE\",\"paymentPositions\":[{}],\"paymentPositionIUPDs\":[\"IUPD-1\"]}";
+        UploadInputReader.Summary summary = reader.scan(toStream(input));
+
+        assertFalse(summary.validOneOf());
+    }
+
+    @Test
+    void readMalformedKO() {
+        assertThrows(JsonProcessingException.class, () -> reader.read(toStream("{\"operation\":\"CREATE\",\"paymentPositions\":[{}"), CRUDOperation.CREATE, 10, (op, positions) -> true, (op, iupds) -> true));
+        assertThrows(JsonProcessingException.class, () -> reader.read(toStream("{\"unknown\":1}"), CRUDOperation.CREATE, 10, (op, positions) -> true, (op, iupds) -> true));
+    }
+
+    @Test
+    void readSegmentsOK() throws IOException, AppException {
+        List<Integer> segmentSizes = new ArrayList<>();
+        UploadInputReader.Summary summary = reader.read(toStream(getCreateInput(5)), CRUDOperation.CREATE, 2,
+                (op, positions) -> segmentSizes.add(positions.size()),
+                (op, iupds) -> fail("no IUPD list expected"));
+
+        assertTrue(summary.isCompleted());
+        assertEquals(List.of(2, 2, 1), segmentSizes);
+    }
+
+    @Test
+    void readStopKO() throws IOException, AppException {
+        List<Integer> segmentSizes = new ArrayList<>();
+        UploadInputReader.Summary summary = reader.read(toStream(getCreateInput(5)), CRUDOperation.CREATE, 2,
+                (op, positions) -> segmentSizes.add(positions.size()) && false,
+                (op, iupds) -> true);
+
+        assertFalse(summary.isCompleted());
+        assertEquals(List.of(2), segmentSizes);
+    }
+
+    private String getCreateInput(int size) throws JsonProcessingException {
+        List<PaymentPosition> paymentPositions = new ArrayList<>();
+        for (int i = 0; i < size; i++)
+            paymentPositions.add(TestUtil.getMockDebtPosition());
+        return om.writeValueAsString(UploadInput.builder().operation(CRUDOperation.CREATE).paymentPositions(paymentPositions).build());
+    }
+
+    private InputStream toStream(String input) {
+        return new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,82 @@
+package it.gov.pagopa.gpd.upload.functions.util;
+
+import it.gov.pagopa.gpd.upload.util.IdempotencyUploadTracker;
+import it.gov.pagopa.gpd.upload.util.InMemoryUploadLock;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class UploadLockTest {
+
+    @Test
+    void memoryLockOK() {
+        InMemoryUploadLock lock = new InMemoryUploadLock(3600);
+        assertTrue(lock.tryLock("subject"));
+        assertFalse(lock.tryLock("subject"));
+        assertTrue(lock.tryLock("other-subject"));
+        assertEquals(2, lock.getHeld());
+
+        lock.unlock("subject");
+        assertTrue(lock.tryLock("subject"));
+    }
+
+    @Test
+    void memoryLockExpired() throws InterruptedException {
+        InMemoryUploadLock lock = new InMemoryUploadLock(0);
+        assertTrue(lock.tryLock("subject"));
+        Thread.sleep(10);
+        assertTrue(lock.tryLock("subject"));
+    }
+
+    @Test
+    void memoryLockSwept() throws InterruptedException {
+        InMemoryUploadLock lock = new InMemoryUploadLock(0);
+        for (int i = 0; i < 100; i++)
+            lock.tryLock("subject-" + i);
+
+        for (int i = 0; i < 100 && lock.getHeld() > 0; i++)
+            Thread.sleep(10); // removed by the sweeper, no further tryLock needed
+        assertEquals(0, lock.getHeld());
+        assertEquals(100, lock.getExpirations());
+    }
+
+    @Test
+    void memoryLockRenew() throws InterruptedException {
+        InMemoryUploadLock lock = new InMemoryUploadLock(3600);
+        lock.renew("subject"); // not held, nothing to renew
+        assertTrue(lock.getInProgress().isEmpty());
+
+        lock.tryLock("subject");
+        Instant acquired = lock.getInProgress().get("subject");
+        Thread.sleep(10);
+        lock.renew("subject");
+        assertTrue(lock.getInProgress().get("subject").isAfter(acquired));
+    }
+
+    @Test
+    void trackerCaseInsensitive() {
+        String subject = "/containers/broker/blobs/EC0001/Key";
+        assertTrue(IdempotencyUploadTracker.tryLock(subject));
+        assertFalse(IdempotencyUploadTracker.tryLock(subject.toLowerCase()));
+        assertTrue(IdempotencyUploadTracker.getInProgress().containsKey(subject.toLowerCase()));
+
+        IdempotencyUploadTracker.unlock(subject.toUpperCase());
+        assertTrue(IdempotencyUploadTracker.tryLock(subject));
+        IdempotencyUploadTracker.unlock(subject);
+    }
+
+    @Test
+    void trackerRenewThrottled() throws InterruptedException {
+        String subject = "/containers/broker/blobs/EC0001/throttled";
+        assertTrue(IdempotencyUploadTracker.tryLock(subject));
+        Instant acquired = IdempotencyUploadTracker.getInProgress().get(subject.toLowerCase());
+        Thread.sleep(10);
+
+        // just acquired: the lease is not extended for every chunk
+        IdempotencyUploadTracker.renew(subject);
+        assertEquals(acquired, IdempotencyUploadTracker.getInProgress().get(subject.toLowerCase()));
+        IdempotencyUploadTracker.unlock(subject);
+    }
+}